@@ -1,27 +1,194 @@
 import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.stream.*;
+import java.util.zip.*;
 
+/**
+ * A B+ tree of int or long keys and row addresses, kept in a file.
+ * 
+ * remove() leaves underfull leaves where they are and only notes them.
+ * setRebalanceAfter() is 0 to start with, so a tree only merges them when
+ * the caller calls rebalance() or compact(), unless it's given a count.
+ */
 public class BTree {
 
 	RandomAccessFile f;
+	FileChannel channel; // Positional reads and writes of whole nodes
+	ThreadLocal<ByteBuffer> nodeBuffer; // One node's worth of bytes
+	ThreadLocal<ByteBuffer> linkBuffer; // Eight bytes, for free list links
+	
+	// Memory mapped mode: the file is read straight out of mappings of MAP_SEGMENT
+	// bytes, each running nodeSize past its end so no node is split between two
+	static final long MAP_SEGMENT = 1 << 30;
+	static final long MAP_CHUNK = 8 << 20; // How much the mapping grows by
+	boolean mapped;
+	volatile MappedByteBuffer[] segments;
+	volatile long mappedEnd; // Address one past the last mapped byte
 	int order; // 'M'
 	int blockSize; // M/12
-	long root;
+	volatile long root;
 	long free;
 	// Add instance variables as needed.
 	static final int LEAF = -1;
 	static final int NONLEAF = 1;
 	
 	boolean changeMin;
+	
+	long end; // Address one past the last node allocated in the file
+	int nodeSize; // Bytes a node takes up in the file
+	
+	// Header: root, free and the block size word, then MAGIC, the format and
+	// a CRC32 of all that. It's padded out to whole blocks, and each node
+	// takes a whole block, so nodes start on block boundaries; with a block
+	// size that's the file system's page size, reading a node is one aligned
+	// read. Files from before FORMAT 2 have just the first three, with nodes
+	// nodeSize apart from right after them, and are still read and written
+	// that way.
+	static final int MAGIC = 0x42547265; // "BTre"
+	static final int FORMAT = 2;
+	static final int HEADER_BYTES = 32;
+	static final int OLD_HEADER_BYTES = 20;
+	static final int PAGE_SIZE = 4096; // If the file system won't say
+	int format;
+	long firstBlock; // Address of the first node
+	
+	// Keys are longs in memory, ordered as signed numbers; a KeyCodec turns
+	// other kinds of keys into them. In the file they take 4 bytes if they
+	// come from ints and 8 if not.
+	static final int WIDE_KEYS = 1 << 29; // Flag kept in the block size word
+	int keyBytes;
+	int childOffset; // Where children[0] is in a node
+	
+	// Packed leaves: keys are stored as varint deltas from the key before and
+	// row addresses as zigzag varint deltas, after the count and the link to
+	// the next leaf. A leaf is full when the next entry might not fit, not at
+	// order-1 keys, so leaves of close together keys hold several times more.
+	// Nonleaves are stored as usual.
+	static final int PACKED_LEAVES = 1 << 30; // Flag kept in the block size word
+	static final int PACKED_HEADER = 12; // Count and next leaf
+	static final int MAX_PACKED_ENTRY = 20; // 10 byte key delta, 10 byte address delta
+	boolean packed;
+	int packedMax; // Most entries a packed leaf could have, at 2 bytes each
+	
+	// Duplicate keys: a key with more than one row keeps its rows in a chain
+	// of posting pages, and its leaf entry is -(address of the first page).
+	// A page has POSTINGS where a node has its count, then the number of rows
+	// on it, the key it belongs to, the next page and the rows. Taking out a
+	// row only ever frees the first page, so cursors part way down a chain
+	// aren't cut off, and the key lets them tell when a page they were
+	// headed to is gone.
+	static final int DUPLICATE_KEYS = 1 << 28; // Flag kept in the block size word
+	static final int POSTINGS = Integer.MIN_VALUE;
+	static final int POSTING_HEADER = 24;
+	boolean duplicates;
+	int postingMax; // Rows on a posting page
+	
+	// Free space: a bit for every block in the file, set if it's free. It's
+	// kept in memory, so finding a free block doesn't read the file, and in a
+	// chain of free map pages in the file, which free in the header points
+	// to. A page is the address of the next page, then the bits for the next
+	// (nodeSize-8)*8 blocks. Files from before the map have a list of free
+	// blocks linked through their first 8 bytes instead, read in on open.
+	static final int FREE_MAP = 1 << 27; // Flag kept in the block size word
+	BitSet freeBlocks = new BitSet();
+	ArrayList<Long> freeMapPages = new ArrayList<>();
+	BitSet freeMapDirty = new BitSet(); // Pages changed since they were written
+	int blocksPerPage;
+	volatile int compactions; // Cursors from before a compact() can't go on
+	
+	// Removes don't merge or even out nodes; a leaf left less than half full
+	// is noted here, by its address and a key that leads to it, and
+	// rebalance() sees to them a batch at a time. close() keeps the notes in
+	// a file next to the tree's and opening reads them back. Once there are
+	// rebalanceAfter of them, the remove that made the last one rebalances.
+	HashMap<Long, Long> underfull = new HashMap<>();
+	String underfullName;
+	int rebalanceAfter; // 0 leaves it to the caller
+	volatile int rebalances; // Cursors from before rebalance() moved anything can't go on
+	
+	// Readahead: a forward cursor going into a leaf starts reading the next
+	// few leaves under the same parent on other threads, so a long scan
+	// waits on several reads at once instead of one after another
+	static final int READAHEAD_THREADS = 4;
+	volatile int readahead; // Leaves to read ahead, 0 for none
+	volatile ExecutorService readers; // The threads doing it
+	
+	// BTreeBench's baseline: find keys in a node by walking back from the
+	// last one, the way it was done before binary search
+	boolean linearScan;
+	
+	// Buffer pool of recently used nodes, least recently used first
+	static final long DEFAULT_CACHE_BYTES = 1 << 20;
+	LinkedHashMap<Long, BTreeNode> cache; // Lock on this to use it
+	int cacheCapacity; // Max number of nodes held in the cache
+	
+	/*
+	 * Any number of threads can search at once, while one thread at a time
+	 * inserts or removes. Every node has a read/write latch. Searches hold
+	 * the latch of a node only until they have the latch of the child they
+	 * go to next. The writer latches its path from the root down and lets
+	 * go of the top of it as soon as it gets to a node that can take the
+	 * change without splitting (or running short of keys), so searches only
+	 * wait on the nodes that are actually changing.
+	 */
+	ReentrantLock writer = new ReentrantLock();
+	ReentrantReadWriteLock rootLatch = new ReentrantReadWriteLock(); // Guards root
+	ConcurrentHashMap<Long, ReentrantReadWriteLock> latches = new ConcurrentHashMap<>();
+	Deque<Lock> latched = new ArrayDeque<>(); // Latches the writer is holding, top down
+	
+	/*
+	 * Snapshots see the tree as it was when they were taken, without taking
+	 * any latches. While one is open, the writer keeps a copy of every block
+	 * the first time it latches it to change it after each snapshot, before
+	 * changing it. A snapshot reads a block from the oldest copy kept since
+	 * it was taken, or if there isn't one, from where everyone else does;
+	 * then it looks for a copy again, and if one turned up, the writer may
+	 * have been changing what it read, so it takes the copy instead.
+	 */
+	int epoch; // Goes up with each snapshot taken
+	long snapshotEnd; // end when the last one was taken; no snapshot can get past it
+	TreeSet<Integer> snapshots = new TreeSet<>(); // Epochs of the open snapshots
+	ConcurrentHashMap<Long, Version> versions = new ConcurrentHashMap<>(); // Newest first
+	
+	/*
+	 * Write-ahead log. While it's on, node writes don't go to the tree file.
+	 * They're kept in pending and appended to the log a batch of operations
+	 * at a time, with one fsync per batch and a commit record holding root,
+	 * free and end. The tree file is only written at a checkpoint, once
+	 * the log has everything, so a crash at any point leaves the file and
+	 * the committed part of the log agreeing. Opening the tree replays
+	 * whatever committed batches the log still has.
+	 */
+	static final long CHECKPOINT_BYTES = 16 << 20; // Pending writes before they go to the tree file
+	static final long CHECKPOINT_LOG_BYTES = 64 << 20; // Or log length, when the same nodes keep changing
+	static final long COMMIT = -1; // Address that marks a commit record in the log
+	static final long MOVED = -2; // Marks a compact() that's moving the tree to the front
+	String logName;
+	FileChannel log;
+	long logEnd;
+	long generation; // Changes at each checkpoint so old records left in the log are ignored
+	int groupSize; // Operations per commit
+	int groupOps; // Operations since the last commit
+	ConcurrentHashMap<Long, byte[]> pending = new ConcurrentHashMap<>(); // Not in the tree file yet
+	long pendingBytes;
+	LinkedHashMap<Long, byte[]> batch = new LinkedHashMap<>(); // Not in the log yet
 
 	private class BTreeNode {
 		private int count; // Number of keys in a node
-		private int[] keys;
+		private long[] keys;
 		private long[] children;
 		private long address; // The address of the node in the file
+		private boolean dirty; // Changed since it was last written to the file
+		private int packedBytes; // Size as a packed leaf, good while count is still packedCount
+		private int packedCount;
 		
 		/** Constructor for a new node */
-		private BTreeNode(long addr, int cnt, int[] k, long[] child){
+		private BTreeNode(long addr, int cnt, long[] k, long[] child){
 			address = addr;
 			count = cnt;
 			keys = k;
@@ -33,81 +200,937 @@ public class BTree {
 			address = addr;
 			
 			if(addr != 0){
-				f.seek(addr);
-				count = f.readInt();
-				
 				// Count specifies num keys -- max is the order-1
-				keys = new int[order-1];
-				for(int k = 0; k < order - 1; k++)
-					keys[k] = f.readInt();
-				
+				keys = new long[order-1];
 				// Max children is order
 				children = new long[order];
-				for(int c = 0; c < order; c++)
-					children[c] = f.readLong();
+				read(addr);
 			}
 		}
 		
-		/** This is where we write nodes */
-		private void writeBTreeNode() throws IOException{
-			f.seek(address);
-			f.writeInt(count);
-			
-			for(int k = 0; k < keys.length; k++)
-				f.writeInt(keys[k]);
+		/** Read the node at addr into this node's arrays */
+		private void read(long addr) throws IOException{
+			// One read for the whole node, then pick the fields out of the buffer
+			ByteBuffer b = nodeBuffer.get();
+			readBlock(addr, b);
+			read(addr, b);
+		}
+		
+		/** Pick the node out of b, which holds the block at addr */
+		private void read(long addr, ByteBuffer b){
+			address = addr;
+			count = b.getInt(0);
+			dirty = false;
+			if(packed && count <= 0){
+				unpack(b);
+				return;
+			}
 			
-			for(int c = 0; c < children.length; c++)
-				f.writeLong(children[c]);
+			resize(order-1);
+			if(keyBytes == 4)
+				for(int i = 0; i < keys.length; i++)
+					keys[i] = b.getInt(4 + 4 * i);
+			else{
+				b.position(4);
+				b.asLongBuffer().get(keys);
+			}
+			b.position(childOffset);
+			b.asLongBuffer().get(children);
+		}
+		
+		/** Make sure the arrays hold n keys; packed leaves hold more than nonleaves */
+		private void resize(int n){
+			if(keys == null || keys.length != n){
+				keys = new long[n];
+				children = new long[n+1];
+			}
+		}
+		
+		/** Read a packed leaf out of b, which has the count already read */
+		private void unpack(ByteBuffer b){
+			resize(packedMax);
+			b.position(4);
+			children[keys.length] = b.getLong();
+			long key = 0;
+			long addr = 0;
+			for(int i = 0; i < -count; i++){
+				key = i == 0 ? unzigzag(getVarint(b)) : key + getVarint(b);
+				addr += unzigzag(getVarint(b));
+				keys[i] = key;
+				children[i] = addr;
+			}
+			packedBytes = b.position();
+			packedCount = count;
+		}
+		
+		/** Put a packed leaf into b */
+		private void pack(ByteBuffer b){
+			b.putLong(children[keys.length]);
+			for(int i = 0; i < -count; i++){
+				putVarint(b, i == 0 ? zigzag(keys[0]) : keys[i] - keys[i-1]);
+				putVarint(b, zigzag(children[i] - (i == 0 ? 0 : children[i-1])));
+			}
+			packedBytes = b.position();
+			packedCount = count;
+		}
+		
+		/**
+		 * This is where we write nodes. With the cache on, the node is only
+		 * marked dirty and goes to the file when it's evicted or on close().
+		 * With the log on, it's written right away so the batch has it.
+		 */
+		private void writeBTreeNode() throws IOException{
+			if(cacheCapacity == 0){
+				flush();
+				return;
+			}
+			if(log != null){
+				flush();
+				synchronized(cache){
+					cachePut(this);
+				}
+				return;
+			}
+			synchronized(cache){
+				dirty = true;
+				cachePut(this);
+			}
+		}
+		
+		/** Write the node out to its spot in the file */
+		private void flush() throws IOException{
+			ByteBuffer b = nodeBuffer.get();
+			put(b);
+			writeBlock(address, b);
+			dirty = false;
+		}
+		
+		/** Lay the node out in b the way it goes in the file */
+		private void put(ByteBuffer b){
+			b.clear();
+			b.putInt(count);
+			if(packed && count <= 0)
+				pack(b);
+			else{
+				if(keyBytes == 4)
+					for(int i = 0; i < keys.length; i++)
+						b.putInt(4 + 4 * i, (int) keys[i]);
+				else
+					b.asLongBuffer().put(keys);
+				b.position(childOffset);
+				b.asLongBuffer().put(children);
+			}
+		}
+	}
+
+	/** A block as it was before the writer changed it after snapshot epoch */
+	private static class Version {
+		private final int epoch;
+		private final byte[] image;
+		private final Version older;
+		
+		private Version(int e, byte[] b, Version o){
+			epoch = e;
+			image = b;
+			older = o;
 		}
 	}
 
 	/**
 	 * Makes a new B+ tree.
 	 * @param filename
-	 * @param bsize -- block size. Used to calculate the order of the B+ tree
+	 * @param bsize -- block size. Used to calculate the order of the B+ tree.
+	 * 0 for the file system's page size.
 	 */
 	public BTree(String filename, int bsize) throws IOException {
+		this(filename, bsize, false);
+	}
+	
+	/**
+	 * Makes a new B+ tree.
+	 * @param filename
+	 * @param bsize -- block size. Used to calculate the order of the B+ tree
+	 * @param pack -- true to pack leaves. Best when keys come close together,
+	 * like ids handed out in order: leaves hold more, so range searches read
+	 * fewer of them and the tree is shorter.
+	 */
+	public BTree(String filename, int bsize, boolean pack) throws IOException {
+		this(filename, bsize, KeyCodec.INT, pack);
+	}
+	
+	/**
+	 * Makes a new B+ tree.
+	 * @param filename
+	 * @param bsize -- block size. Used to calculate the order of the B+ tree
+	 * @param keys -- how the keys are encoded. Pass the keys through it
+	 * before handing them to the tree.
+	 * @param pack -- true to pack leaves
+	 */
+	public BTree(String filename, int bsize, KeyCodec<?> keys, boolean pack) throws IOException {
+		this(filename, bsize, keys, pack, false);
+	}
+	
+	/**
+	 * Makes a new B+ tree.
+	 * @param filename
+	 * @param bsize -- block size. Used to calculate the order of the B+ tree.
+	 * 0 for the file system's page size.
+	 * @param keys -- how the keys are encoded
+	 * @param pack -- true to pack leaves
+	 * @param dups -- true to let a key go with more than one row, as in an
+	 * index on a column that isn't unique. Can't be used with pack.
+	 * 
+	 * The tree starts with setRebalanceAfter(0): removes leave underfull
+	 * leaves for rebalance() to merge when the caller asks.
+	 */
+	public BTree(String filename, int bsize, KeyCodec<?> keys, boolean pack, boolean dups) throws IOException {
+		if(pack && dups) throw new IllegalArgumentException("Packed leaves can't hold duplicate keys");
+		
 		// All B+Tree nodes will use bsize bytes
 		File file = new File(filename);
 		f = new RandomAccessFile(file, "rw");
 		if(file.exists()) f.setLength(0);
-		blockSize = bsize;
-		order = Math.floorDiv(blockSize, 12);
+		blockSize = bsize > 0 ? bsize : pageSize(file);
+		keyBytes = keys.width();
+		format = FORMAT;
 		root = 0;
 		free = 0;
 		changeMin = false;
-		f.seek(16);
-		f.writeInt(bsize);
+		packed = pack;
+		duplicates = dups;
+		layout();
+		if(duplicates && postingMax < 2) throw new IllegalArgumentException("Block size too small for duplicate keys");
+		f.setLength(firstBlock);
+		end = f.length();
+		logName = filename + ".log";
+		new File(logName).delete(); // Left from an old tree
+		underfullName = filename + ".underfull";
+		new File(underfullName).delete();
+		openChannel();
+		writeHeader();
 	}
 
 	/** Open an existing B+ tree */
 	public BTree(String filename) throws IOException {
+		this(filename, false);
+	}
+	
+	/**
+	 * Open an existing B+ tree
+	 * @param filename
+	 * @param map -- true to memory map the file. Good for read heavy trees
+	 * that fit in memory: searches chase child pointers through the mapping
+	 * instead of reading nodes.
+	 */
+	public BTree(String filename, boolean map) throws IOException {
 		File file = new File(filename);
 		f = new RandomAccessFile(file,"rw");
+		ByteBuffer h = ByteBuffer.allocate(HEADER_BYTES);
 		f.seek(0);
-		root = f.readLong(); // Start at first element in access file
-		free = f.readLong(); // 
-		blockSize = f.readInt();
-		order = Math.floorDiv(blockSize, 12);
+		f.readFully(h.array(), 0, (int) Math.min(HEADER_BYTES, f.length()));
+		root = h.getLong(0); // Start at first element in access file
+		free = h.getLong(8); // 
+		blockSize = h.getInt(16);
+		format = h.getInt(OLD_HEADER_BYTES) == MAGIC ? h.getInt(OLD_HEADER_BYTES + 4) : 1;
+		if(format > FORMAT) throw new IOException(filename + " is format " + format + ", newer than this reads");
+		if(format > 1 && h.getInt(HEADER_BYTES - 4) != headerSum(h))
+			throw new IOException("Header of " + filename + " is damaged");
+		packed = (blockSize & PACKED_LEAVES) != 0;
+		keyBytes = (blockSize & WIDE_KEYS) != 0 ? 8 : 4;
+		duplicates = (blockSize & DUPLICATE_KEYS) != 0;
+		boolean freeList = (blockSize & FREE_MAP) == 0;
+		blockSize &= ~(PACKED_LEAVES | WIDE_KEYS | DUPLICATE_KEYS | FREE_MAP);
 		changeMin = false;
+		end = f.length();
+		layout();
+		logName = filename + ".log";
+		underfullName = filename + ".underfull";
+		openChannel();
+		recover();
+		readFreeSpace(freeList);
+		readUnderfull();
+		
+		if(map){
+			// The OS page cache holds the nodes, so we don't keep our own
+			mapped = true;
+			segments = new MappedByteBuffer[0];
+			setCacheSize(0);
+			growMap(end);
+		}
+	}
+	
+	/** Work out the order and where things go in a node from blockSize and keyBytes */
+	private void layout(){
+		order = Math.floorDiv(blockSize, keyBytes + 8);
+		childOffset = 4 + keyBytes * (order-1);
+		nodeSize = childOffset + 8 * order;
+		if(format > 1){
+			nodeSize = blockSize; // The rest is padding
+			firstBlock = (HEADER_BYTES + blockSize - 1) / blockSize * (long) blockSize;
+		}else
+			firstBlock = OLD_HEADER_BYTES;
+		packedMax = (nodeSize - PACKED_HEADER) / 2;
+		postingMax = (nodeSize - POSTING_HEADER) / 8;
+		blocksPerPage = (nodeSize - 8) * 8;
+	}
+	
+	/** The file system's block size where file goes, or PAGE_SIZE if it won't say */
+	private static int pageSize(File file){
+		try{
+			File dir = file.getAbsoluteFile().getParentFile();
+			return (int) java.nio.file.Files.getFileStore(dir.toPath()).getBlockSize();
+		}catch(IOException | UnsupportedOperationException e){
+			return PAGE_SIZE;
+		}
+	}
+	
+	/** CRC32 of the header in h, up to where the sum goes */
+	private static int headerSum(ByteBuffer h){
+		CRC32 crc = new CRC32();
+		crc.update(h.array(), 0, HEADER_BYTES - 4);
+		return (int) crc.getValue();
+	}
+	
+	/** The block size with the flags for how the tree is stored */
+	private int blockWord(){
+		return blockSize | (packed ? PACKED_LEAVES : 0) | (keyBytes == 8 ? WIDE_KEYS : 0)
+				| (duplicates ? DUPLICATE_KEYS : 0) | FREE_MAP;
+	}
+	
+	/** Set up the buffers used to move nodes in and out of the file */
+	private void openChannel() throws IOException{
+		channel = f.getChannel();
+		nodeBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(nodeSize));
+		linkBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(8));
+		setCacheSize(DEFAULT_CACHE_BYTES);
+	}
+	
+	/** Fill the buffer with the block at addr, from the log's pending writes if it's there */
+	private void readBlock(long addr, ByteBuffer b) throws IOException{
+		b.clear();
+		byte[] page = pending.get(addr);
+		if(page != null && page.length >= b.capacity()){
+			b.put(page, 0, b.capacity());
+			b.clear();
+			return;
+		}
+		readFile(addr, b);
+		if(page != null){ // A free block's link written over part of a node
+			b.put(page);
+			b.clear();
+		}
+	}
+	
+	/** Fill the buffer from the file starting at addr, with no seek */
+	private void readFile(long addr, ByteBuffer b) throws IOException{
+		b.clear();
+		if(addr + b.capacity() <= mappedEnd){
+			ByteBuffer src = segment(addr).duplicate();
+			src.position(offset(addr));
+			src.limit(offset(addr) + b.capacity());
+			b.put(src);
+			b.clear();
+			return;
+		}
+		while(b.hasRemaining())
+			if(channel.read(b, addr + b.position()) < 0)
+				throw new EOFException("No block at " + addr);
+		b.clear();
+	}
+	
+	/** Write the whole buffer as the block at addr, to the log's batch if it's on */
+	private void writeBlock(long addr, ByteBuffer b) throws IOException{
+		b.clear();
+		if(log == null){
+			writeFile(addr, b);
+			return;
+		}
+		
+		byte[] page = new byte[b.remaining()];
+		b.get(page);
+		byte[] had = pending.get(addr);
+		if(had != null && had.length > page.length){
+			// Searches may be copying the old one, so make a new one
+			had = had.clone();
+			System.arraycopy(page, 0, had, 0, page.length);
+			page = had;
+		}
+		had = pending.put(addr, page);
+		pendingBytes += page.length - (had == null ? 0 : had.length);
+		batch.put(addr, page);
+	}
+	
+	/** Write the whole buffer to the file starting at addr, with no seek */
+	private void writeFile(long addr, ByteBuffer b) throws IOException{
+		b.clear();
+		while(b.hasRemaining())
+			channel.write(b, addr + b.position());
+	}
+	
+	/** Write the header to the front of the file */
+	private void writeHeader() throws IOException{
+		ByteBuffer b = ByteBuffer.allocate(format > 1 ? HEADER_BYTES : OLD_HEADER_BYTES);
+		b.putLong(root).putLong(free).putInt(blockWord());
+		if(format > 1){
+			b.putInt(MAGIC).putInt(format);
+			b.putInt(headerSum(b));
+		}
+		writeFile(0, b);
+	}
+	
+	/**
+	 * Turn on the write-ahead log. From here on changes are durable group
+	 * operations at a time, for one fsync of the log; commit() makes
+	 * everything so far durable right away.
+	 * @param group -- number of inserts/removes per commit
+	 */
+	public void startLog(int group) throws IOException{
+		writer.lock();
+		try{
+			if(mapped) throw new IllegalStateException("Can't log a memory mapped tree");
+			groupSize = Math.max(group, 1);
+			if(log != null) return;
+			
+			// Start from a file that has everything so far
+			synchronized(cache){
+				for(BTreeNode node : cache.values())
+					if(node.dirty) node.flush();
+			}
+			writeFreeMap();
+			writeHeader();
+			channel.force(true);
+			
+			log = new RandomAccessFile(logName, "rw").getChannel();
+			generation = System.currentTimeMillis();
+			restartLog();
+		}finally{
+			writer.unlock();
+		}
+	}
+	
+	/** Empty the log, leaving just the generation at the front */
+	private void restartLog() throws IOException{
+		ByteBuffer b = ByteBuffer.allocate(8);
+		b.putLong(0, generation);
+		while(b.hasRemaining())
+			log.write(b, b.position());
+		log.truncate(8);
+		log.force(false);
+		logEnd = 8;
+	}
+	
+	/** Count an insert or remove towards the group commit. Call with the writer lock held */
+	private void endOperation() throws IOException{
+		if(log != null && ++groupOps >= groupSize) commit();
+	}
+	
+	/**
+	 * Make every change so far durable: the batch is appended to the log
+	 * with a commit record and the log is synced once. Does nothing if the
+	 * log isn't on.
+	 */
+	public void commit() throws IOException{
+		writer.lock();
+		try{
+			if(log == null || (groupOps == 0 && batch.isEmpty())) return;
+			writeFreeMap();
+			
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			CRC32 crc = new CRC32();
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(bytes, crc));
+			for(Map.Entry<Long, byte[]> page : batch.entrySet()){
+				out.writeLong(page.getKey());
+				out.writeInt(page.getValue().length);
+				out.write(page.getValue());
+			}
+			out.writeLong(COMMIT);
+			out.writeLong(generation);
+			out.writeLong(root);
+			out.writeLong(free);
+			out.writeLong(end);
+			out.writeInt((int) crc.getValue());
+			
+			ByteBuffer b = ByteBuffer.wrap(bytes.toByteArray());
+			while(b.hasRemaining())
+				logEnd += log.write(b, logEnd);
+			log.force(false);
+			batch.clear();
+			groupOps = 0;
+			
+			if(pendingBytes >= CHECKPOINT_BYTES || logEnd >= CHECKPOINT_LOG_BYTES) checkpoint();
+		}finally{
+			writer.unlock();
+		}
+	}
+	
+	/** Put the committed writes into the tree file and empty the log. Call after commit() */
+	private void checkpoint() throws IOException{
+		for(Map.Entry<Long, byte[]> page : pending.entrySet())
+			writeFile(page.getKey(), ByteBuffer.wrap(page.getValue()));
+		writeHeader();
+		channel.force(true);
+		
+		// Only now can searches go back to the file for these
+		pending.clear();
+		pendingBytes = 0;
+		generation++;
+		restartLog();
+	}
+	
+	/**
+	 * Redo the batches the log has commit records for, then drop the log.
+	 * A batch cut off by a crash fails its checksum and is left out, along
+	 * with everything after it.
+	 */
+	private void recover() throws IOException{
+		File file = new File(logName);
+		if(!file.exists()) return;
+		
+		boolean redone = false;
+		CRC32 crc = new CRC32();
+		try(DataInputStream in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file)), crc))){
+			long gen = in.readLong();
+			Map<Long, byte[]> pages = new LinkedHashMap<>();
+			crc.reset();
+			while(true){
+				long addr = in.readLong();
+				if(addr == MOVED){
+					// The new layout is all there, so finish moving it
+					long recGen = in.readLong();
+					long from = in.readLong();
+					long size = in.readLong();
+					int sum = (int) crc.getValue();
+					if(in.readInt() != sum || recGen != gen) break;
+					moveBlocks(from, size);
+					redone = true;
+					break;
+				}
+				if(addr != COMMIT){
+					int len = in.readInt();
+					if(addr < firstBlock || len <= 0 || len > nodeSize) break; // Not a record
+					byte[] page = new byte[len];
+					in.readFully(page);
+					pages.put(addr, page);
+					continue;
+				}
+				
+				long recGen = in.readLong();
+				long recRoot = in.readLong();
+				long recFree = in.readLong();
+				long recEnd = in.readLong();
+				int sum = (int) crc.getValue();
+				if(in.readInt() != sum || recGen != gen) break;
+				
+				for(Map.Entry<Long, byte[]> page : pages.entrySet())
+					writeFile(page.getKey(), ByteBuffer.wrap(page.getValue()));
+				root = recRoot;
+				free = recFree;
+				end = Math.max(end, recEnd);
+				redone = true;
+				pages.clear();
+				crc.reset();
+			}
+		}catch(EOFException e){
+			// The end of what was written
+		}
+		
+		if(redone){
+			writeHeader();
+			channel.force(true);
+			end = Math.max(end, f.length());
+		}
+		file.delete();
+	}
+	
+	/**
+	 * Rewrite the tree in key order and give back the free space. Nodes are
+	 * laid out a level at a time from the root, so the leaves end up side by
+	 * side in key order, with the posting pages after them, and the file is
+	 * cut down to just what the tree needs.
+	 * 
+	 * Underfull nodes are rebalanced first. Searches wait while it runs.
+	 * Cursors opened before it throw ConcurrentModificationException if
+	 * they're used after.
+	 */
+	public void compact() throws IOException{
+		rebalance();
+		writer.lock();
+		Lock top = rootLatch.writeLock();
+		top.lock();
+		try{
+			compactions++;
+			versions.clear(); // Open snapshots can't go on either
+			if(log != null){
+				commit();
+				checkpoint();
+			}
+			synchronized(cache){
+				for(BTreeNode node : cache.values())
+					if(node.dirty) node.flush();
+			}
+			
+			// Build the new layout past the end, where nothing can be using it
+			long from = end;
+			long size = root == 0 ? 0 : writeCompacted(from);
+			channel.force(true);
+			synchronized(cache){ // Searches are all out, but may have cached old nodes
+				cache.clear();
+			}
+			
+			// From here a crash finishes the move when the tree is opened
+			if(log != null){
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				CRC32 crc = new CRC32();
+				DataOutputStream out = new DataOutputStream(new CheckedOutputStream(bytes, crc));
+				out.writeLong(MOVED);
+				out.writeLong(generation);
+				out.writeLong(from);
+				out.writeLong(size);
+				out.writeInt((int) crc.getValue());
+				ByteBuffer b = ByteBuffer.wrap(bytes.toByteArray());
+				while(b.hasRemaining())
+					logEnd += log.write(b, logEnd);
+				log.force(false);
+			}
+			
+			if(mapped){ // The mapping is about to be cut short
+				segments = new MappedByteBuffer[0];
+				mappedEnd = 0;
+			}
+			moveBlocks(from, size);
+			freeBlocks.clear();
+			freeMapPages.clear();
+			freeMapDirty.clear();
+			channel.force(true);
+			if(mapped) growMap(end);
+			if(log != null){
+				generation++;
+				restartLog();
+			}
+			latches.clear();
+		}finally{
+			top.unlock();
+			writer.unlock();
+		}
+	}
+	
+	/**
+	 * Copy the tree to the file starting at base, laid out the way it will be
+	 * once it's moved to the front. The copy can't be bigger than the file
+	 * before base, or have a node in it twice, unless the tree is damaged;
+	 * then it stops with an IOException instead of copying forever.
+	 * @return bytes written
+	 */
+	private long writeCompacted(long base) throws IOException{
+		ArrayDeque<Long> queue = new ArrayDeque<>();
+		HashSet<Long> seen = new HashSet<>();
+		queue.add(root);
+		long at = firstBlock; // Where the node we're on goes
+		long next = at + nodeSize; // Where the next child we come to goes
+		long postings = 0; // Where the next posting page goes, once we're at the leaves
+		BTreeNode node = new BTreeNode(0);
+		ByteBuffer b = nodeBuffer.get();
+		
+		while(!queue.isEmpty()){
+			long addr = queue.remove();
+			if(!seen.add(addr) || at >= base)
+				throw new IOException("Tree is damaged: node " + addr + " reached twice or more nodes than the file holds");
+			
+			// Let any search still on its way down through here get out first
+			Lock l = latchFor(addr).writeLock();
+			l.lock();
+			l.unlock();
+			
+			node.read(addr);
+			if(isLeaf(node)){
+				if(postings == 0) postings = next; // Every node has its place by now
+				for(int i = 0; i < -node.count; i++)
+					if(isPostings(node.children[i])){
+						long head = postings;
+						postings = copyPostings(-node.children[i], base, postings);
+						node.children[i] = -head;
+					}
+				node.children[node.keys.length] = queue.isEmpty() ? 0 : at + nodeSize;
+			}else
+				for(int i = 0; i <= node.count; i++){
+					queue.add(node.children[i]);
+					node.children[i] = next;
+					next += nodeSize;
+				}
+			
+			node.put(b);
+			writeFile(base + at - firstBlock, b);
+			at += nodeSize;
+		}
+		return postings - firstBlock;
+	}
+	
+	/**
+	 * Copy the posting list starting at head to the new layout at base, its
+	 * pages going one after another from to
+	 * @return where the page after them goes
+	 */
+	private long copyPostings(long head, long base, long to) throws IOException{
+		ByteBuffer b = nodeBuffer.get();
+		for(long page = head; page != 0; to += nodeSize){
+			if(to >= base) throw new IOException("Tree is damaged: posting list at " + head + " doesn't end");
+			readBlock(page, b);
+			page = b.getLong(16);
+			b.putLong(16, page == 0 ? 0 : to + nodeSize);
+			writeFile(base + to - firstBlock, b);
+		}
+		return to;
+	}
+	
+	/**
+	 * Move the size bytes at from to the front of the file, where they're a
+	 * whole tree with no free space, and cut the file off after them
+	 */
+	private void moveBlocks(long from, long size) throws IOException{
+		ByteBuffer b = ByteBuffer.allocate((int) Math.min(size, MAP_CHUNK));
+		for(long done = 0; done < size; done += b.capacity()){
+			b.clear();
+			b.limit((int) Math.min(b.capacity(), size - done));
+			while(b.hasRemaining())
+				if(channel.read(b, from + done + b.position()) < 0)
+					throw new EOFException("No block at " + (from + done + b.position()));
+			b.flip();
+			while(b.hasRemaining())
+				channel.write(b, firstBlock + done + b.position());
+		}
+		root = size == 0 ? 0 : firstBlock;
+		free = 0;
+		end = firstBlock + size;
+		writeHeader();
+		f.setLength(end);
+	}
+	
+	/**
+	 * Map the file out to at least addr, a chunk at a time. Mapping past the
+	 * end of the file grows it, so close() trims the file back down to end.
+	 */
+	private void growMap(long addr) throws IOException{
+		if(addr <= mappedEnd) return;
+		long newEnd = Math.max(MAP_CHUNK, (addr + MAP_CHUNK - 1) / MAP_CHUNK * MAP_CHUNK);
+		int first = (int) (mappedEnd / MAP_SEGMENT);
+		int last = (int) ((newEnd - 1) / MAP_SEGMENT);
+		
+		// Only the last segment(s) change; earlier ones are already full size.
+		// Searches may be using the old array, so build a new one
+		MappedByteBuffer[] grown = Arrays.copyOf(segments, last + 1);
+		for(int i = first; i <= last; i++){
+			long start = i * MAP_SEGMENT;
+			long size = Math.min(MAP_SEGMENT + nodeSize, newEnd - start);
+			grown[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		}
+		segments = grown;
+		mappedEnd = newEnd;
+	}
+	
+	/** The mapping a node at addr lives in */
+	private MappedByteBuffer segment(long addr){
+		return segments[(int) (addr / MAP_SEGMENT)];
+	}
+	
+	/** Where in its mapping the node at addr starts */
+	private int offset(long addr){
+		return (int) (addr % MAP_SEGMENT);
+	}
+	
+	/**
+	 * Set how much memory the node cache may use. The top levels of the tree
+	 * stay in memory, so most searches only go to the file for the leaf.
+	 * @param bytes -- cache budget; 0 turns the cache off and writes go
+	 * straight to the file
+	 */
+	public void setCacheSize(long bytes) throws IOException {
+		if(mapped) bytes = 0;
+		if(cache == null)
+			cache = new LinkedHashMap<>(16, 0.75f, true); // Access order for LRU
+		synchronized(cache){
+			cacheCapacity = (int) Math.min(bytes / blockSize, Integer.MAX_VALUE);
+			evict();
+		}
+	}
+	
+	/**
+	 * Set how many leaves ahead range cursors read while scanning forward.
+	 * Helps long scans of trees that aren't in the cache; leaves that are
+	 * cached aren't read ahead.
+	 * @param leaves -- 0 turns it off, which is how a tree starts
+	 */
+	public synchronized void setReadahead(int leaves){
+		readahead = Math.max(leaves, 0);
+		if(readahead > 0 && readers == null)
+			readers = Executors.newFixedThreadPool(READAHEAD_THREADS, r -> {
+				Thread t = new Thread(r, "BTree readahead");
+				t.setDaemon(true);
+				return t;
+			});
+	}
+	
+	/**
+	 * Get a node, from the cache if we have it and from the file if we don't.
+	 * The caller needs to hold the node's latch.
+	 */
+	private BTreeNode readNode(long addr) throws IOException{
+		if(addr == 0) return new BTreeNode(0);
+		
+		BTreeNode node;
+		synchronized(cache){
+			node = cache.get(addr);
+		}
+		if(node == null){
+			node = new BTreeNode(addr);
+			if(cacheCapacity > 0){
+				synchronized(cache){
+					// Another search may have read it in at the same time
+					BTreeNode had = cache.putIfAbsent(addr, node);
+					if(had == null) evict();
+					else node = had;
+				}
+			}
+		}
+		return node;
+	}
+	
+	/**
+	 * Copy the node at addr into spare, from the cache if it's there and from
+	 * the file (without caching it) if it isn't. For walking lots of leaves.
+	 */
+	private BTreeNode readNode(long addr, BTreeNode spare) throws IOException{
+		BTreeNode node;
+		synchronized(cache){
+			node = cache.get(addr);
+		}
+		if(node == null){
+			spare.read(addr);
+			return spare;
+		}
+		
+		spare.resize(node.keys.length);
+		spare.address = node.address;
+		spare.count = node.count;
+		System.arraycopy(node.keys, 0, spare.keys, 0, node.keys.length);
+		System.arraycopy(node.children, 0, spare.children, 0, node.children.length);
+		return spare;
+	}
+	
+	/** Call with the cache locked */
+	private void cachePut(BTreeNode node) throws IOException{
+		cache.put(node.address, node);
+		evict();
+	}
+	
+	/**
+	 * Drop least recently used nodes until we're within budget, writing back
+	 * dirty ones. Skips nodes another thread is in the middle of changing;
+	 * they'll be put back when they're written anyway. Call with the cache locked.
+	 */
+	private void evict() throws IOException{
+		Iterator<BTreeNode> lru = cache.values().iterator();
+		while(cache.size() > cacheCapacity && lru.hasNext()){
+			BTreeNode old = lru.next();
+			ReentrantReadWriteLock l = latches.get(old.address);
+			if(l != null && l.isWriteLocked() && !l.isWriteLockedByCurrentThread())
+				continue;
+			if(old.dirty) old.flush();
+			lru.remove();
+		}
+	}
+	
+	/** The latch for the node at addr */
+	private ReentrantReadWriteLock latchFor(long addr){
+		ReentrantReadWriteLock l = latches.get(addr);
+		return l != null ? l : latches.computeIfAbsent(addr, a -> new ReentrantReadWriteLock());
+	}
+	
+	/** Read latch the child, then let go of the parent's latch */
+	private Lock couple(Lock parent, long child){
+		Lock next = latchFor(child).readLock();
+		next.lock();
+		parent.unlock();
+		return next;
+	}
+	
+	/** Lock l and remember it so the writer can let it go later */
+	private void latch(Lock l){
+		l.lock();
+		latched.addLast(l);
+	}
+	
+	/** Let go of all but the last keep latches the writer holds */
+	private void unlatch(int keep){
+		while(latched.size() > keep)
+			latched.removeFirst().unlock();
+	}
+	
+	/** For the writer: latch a node off the search path (a sibling) and read it */
+	private BTreeNode readLatched(long addr) throws IOException{
+		latchWrite(addr);
+		return readNode(addr);
+	}
+	
+	/** For the writer: latch the block at addr to change it, keeping it for snapshots */
+	private void latchWrite(long addr) throws IOException{
+		latch(latchFor(addr).writeLock());
+		keepVersion(addr);
+	}
+	
+	/** If an open snapshot may need the block at addr as it is now, keep a copy */
+	private void keepVersion(long addr) throws IOException{
+		if(snapshots.isEmpty() || addr >= snapshotEnd) return;
+		if(freeBlocks.get((int) ((addr - firstBlock) / nodeSize))) return; // No snapshot can get to it
+		Version v = versions.get(addr);
+		if(v != null && v.epoch == epoch) return; // Kept since the last snapshot
+		
+		ByteBuffer b = nodeBuffer.get();
+		BTreeNode node;
+		synchronized(cache){
+			node = cache.get(addr);
+		}
+		if(node != null) node.put(b); // Newer than the file if it's dirty
+		else readBlock(addr, b);
+		byte[] image = new byte[nodeSize];
+		b.clear();
+		b.get(image);
+		versions.put(addr, new Version(epoch, image, v));
+		VarHandle.releaseFence(); // Snapshots see the copy before any change
 	}
 
 
 	/**
-	 * If key is not a duplicate, add key to B+tree.
+	 * If key is not a duplicate, add key to B+tree. With duplicate keys on,
+	 * a key that's already there gets addr added to its rows.
 	 * @param key -- new value to insert to tree
 	 * @param addr -- (in DBTable) is address of the row that contains the key
 	 * @return true if key is added, false if key is a duplicate
 	 */
-	public boolean insert(int key, long addr) throws IOException{
+	public boolean insert(long key, long addr) throws IOException{
+		if(duplicates && addr < 0) throw new IllegalArgumentException("Row addresses can't be negative");
+		writer.lock();
+		try{
+			boolean added = insertLatched(key, addr);
+			unlatch(0); // Searches needn't wait on the commit
+			endOperation();
+			return added;
+		}finally{
+			unlatch(0);
+			writer.unlock();
+		}
+	}
+	
+	private boolean insertLatched(long key, long addr) throws IOException{
 		BTreeNode node;
 		BTreeNode newNode;
 		
 		// Case for initialization
 		if(root == 0){
+			latch(rootLatch.writeLock());
 			// Node: address, count, keys[], children[]
 			// Make our array to copy over 1 larger than the old
-			node = new BTreeNode(getFree(), LEAF, new int[order-1], new long[order]);
+			node = newNode(getFree(), LEAF);
 			node.keys[0] = key;
 			node.children[0] = addr;
 			root = node.address;
@@ -115,16 +1138,19 @@ public class BTree {
 			return true;
 		}
 		
-		Stack<BTreeNode> path = searchPath(key); // Get a path of nodes to the key value
+		Deque<BTreeNode> path = searchPath(key, false); // Get a path of nodes to the key value
 		boolean split = true;
 		long loc = -1; // Initialize location and value to -1
-		int val = -1;
+		long val = -1;
 		
 		node = path.pop(); // First node in stack
 		
 		// Check if the value we're trying to insert already exists
-		if(checkNode(node, key))
-			return false;
+		if(checkNode(node, key)){
+			if(!duplicates) return false;
+			addPosting(node, childIndex(node, key) - 1, addr);
+			return true;
+		}
 		
 		if(hasRoom(node)){ // If there's room in the current node
 			insertKey(node, key, addr, LEAF); // insert key into node
@@ -139,14 +1165,14 @@ public class BTree {
 			split = true;
 		}
 		
-		while(!path.empty() && split){ // more nodes in the path and we have to split
+		while(!path.isEmpty() && split){ // more nodes in the path and we have to split
 			node = path.pop(); // get next node
 			if(hasRoom(node)){ // check for room
 				insertKey(node, val, loc, NONLEAF); // Insert val and loc into our nonleaf node
 				node.writeBTreeNode();
 				split = false; // don't have to split
 			}else{
-				newNode = new BTreeNode(getFree(), LEAF, new int[order-1], new long[order]);
+				newNode = newNode(getFree(node.address), NONLEAF);
 				// let val be middle value of values in the node
 				// put values less than val and matching locations in node
 				// put values greater than val and matching locations in newNode
@@ -158,7 +1184,7 @@ public class BTree {
 		}
 		
 		if(split){ // Then the root was split
-			newNode = new BTreeNode(getFree(), NONLEAF, new int[order-1], new long[order]);
+			newNode = newNode(getFree(), NONLEAF);
 			// Insert address of old root, val, and loc into newNode
 			newNode.children[0] = node.address;
 			newNode.keys[0] = val;
@@ -169,40 +1195,131 @@ public class BTree {
 		return true;
 	}
 	
-	/**
-	 * Find the path from the root to the value we want to insert
-	 * @param key
-	 * @return
-	 * @throws IOException
+	/** For the writer: add addr to the rows of the key at pos in leaf */
+	private void addPosting(BTreeNode leaf, int pos, long addr) throws IOException{
+		long had = leaf.children[pos];
+		ByteBuffer b = nodeBuffer.get();
+		if(had < 0){
+			long head = -had;
+			latchWrite(head);
+			readBlock(head, b);
+			int n = b.getInt(4);
+			if(n < postingMax){
+				b.putLong(POSTING_HEADER + 8 * n, addr);
+				b.putInt(4, n+1);
+				writeBlock(head, b);
+				return;
+			}
+		}
+		
+		// Start a new first page, ahead of the old one or the key's one row
+		long page = getFree(leaf.address);
+		latch(latchFor(page).writeLock()); // Free till now, so no snapshot needs it
+		b.clear();
+		b.putInt(0, POSTINGS);
+		b.putLong(8, leaf.keys[pos]);
+		if(had < 0){
+			b.putInt(4, 1);
+			b.putLong(16, -had);
+			b.putLong(POSTING_HEADER, addr);
+		}else{
+			b.putInt(4, 2);
+			b.putLong(16, 0);
+			b.putLong(POSTING_HEADER, had);
+			b.putLong(POSTING_HEADER + 8, addr);
+		}
+		writeBlock(page, b);
+		leaf.children[pos] = -page;
+		leaf.writeBTreeNode();
+	}
+	
+	/**
+	 * For the writer: take addr out of the posting list starting at head.
+	 * The hole it leaves is filled from the first page, so the first page is
+	 * the only one that can run out of rows.
+	 * @return the new first page, 0 if the list is now empty, -1 if addr isn't in it
+	 */
+	private long removePosting(long head, long addr) throws IOException{
+		ByteBuffer h = ByteBuffer.allocate(nodeSize);
+		latchWrite(head);
+		readBlock(head, h);
+		int last = h.getInt(4) - 1;
+		long moved = h.getLong(POSTING_HEADER + 8 * last);
+		
+		ByteBuffer b = nodeBuffer.get();
+		for(long page = head; page != 0; page = b.getLong(16)){
+			latchWrite(page);
+			readBlock(page, b);
+			for(int i = 0; i < b.getInt(4); i++){
+				if(b.getLong(POSTING_HEADER + 8 * i) != addr) continue;
+				
+				// Copy the first page's last row over it, then drop that row
+				if(page == head) h.putLong(POSTING_HEADER + 8 * i, moved);
+				else{
+					b.putLong(POSTING_HEADER + 8 * i, moved);
+					writeBlock(page, b);
+				}
+				if(last == 0){
+					addFree(head);
+					return h.getLong(16);
+				}
+				h.putInt(4, last);
+				writeBlock(head, h);
+				return head;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * For the writer: free every page of the posting list starting at head
+	 * @return the first row on it
 	 */
-	private Stack<BTreeNode> searchPath(int key) throws IOException{
-		Stack<BTreeNode> nodes = new Stack<>();
-		return searchPath(key, new BTreeNode(root), nodes);
+	private long removePostings(long head) throws IOException{
+		ByteBuffer b = nodeBuffer.get();
+		readBlock(head, b);
+		long first = b.getLong(POSTING_HEADER);
+		for(long page = head; page != 0; ){
+			latchWrite(page);
+			readBlock(page, b);
+			long next = b.getLong(16);
+			addFree(page);
+			page = next;
+		}
+		return first;
 	}
 	
-	/** Helper method for searchPath() */
-	private Stack<BTreeNode> searchPath(int k, BTreeNode checkNode, Stack<BTreeNode> path) throws IOException{
+	/**
+	 * Find the path from the root to the value we want to insert, write
+	 * latching it on the way down. Latches above a node that's safe from
+	 * the change are let go, so only the bottom of the path stays latched.
+	 * @param key
+	 * @param removing -- true for remove(), false for insert()
+	 * @return
+	 * @throws IOException
+	 */
+	private Deque<BTreeNode> searchPath(long key, boolean removing) throws IOException{
+		Deque<BTreeNode> path = new ArrayDeque<>();
+		latch(rootLatch.writeLock());
+		latchWrite(root);
+		BTreeNode checkNode = readNode(root);
 		path.push(checkNode);
+		if(isSafe(checkNode, removing)) unlatch(1); // The root won't change
 		
-		if(isLeaf(checkNode)) return path;
-		
-		//int len = Math.abs(checkNode.count);
-		int len = checkNode.count;
-		int pos = len;
-		
-		// Find correct position in node
-		while(pos-1 != -1 && k < checkNode.keys[pos-1])
-			pos--;
-		
-		// Check where to look for value
-		if(pos-1 == -1) // Ran off start of keys array
-			checkNode = new BTreeNode(checkNode.children[0]);
-		else if(pos == len) // Ran off end of keys array
-			checkNode = new BTreeNode(checkNode.children[len]);
-		else // Found value between start and end of keys array
-			checkNode = new BTreeNode(checkNode.children[pos]);
-		
-		return searchPath(k, checkNode, path);
+		while(!isLeaf(checkNode)){
+			long child = checkNode.children[childIndex(checkNode, key)];
+			latchWrite(child);
+			checkNode = readNode(child);
+			path.push(checkNode);
+			// Removing can change the key in the parent too, so hang on to it
+			if(isSafe(checkNode, removing)) unlatch(removing ? 2 : 1);
+		}
+		return path;
+	}
+	
+	/** Whether a change under this node can't go any higher than it */
+	private boolean isSafe(BTreeNode node, boolean removing){
+		return removing ? hasExtraKeys(node) : hasRoom(node);
 	}
 	
 	/**
@@ -211,104 +1328,74 @@ public class BTree {
 	 * @param k -- key value to insert
 	 * @param addr -- address of node to insert value into
 	 */
-	private void insertKey(BTreeNode n, int k, long addr, int nodeType){
-		int len = n.count;
-		int pos = len;
+	private void insertKey(BTreeNode n, long k, long addr, int nodeType){
+		int len = Math.abs(n.count);
+		int pos = childIndex(n, k); // Same spot search would look for k
+		
+		// Shift everything after pos over one to make room
+		System.arraycopy(n.keys, pos, n.keys, pos+1, len-pos);
 		
 		if(nodeType == -1){ // Inserting into a leaf
-			pos = Math.abs(pos);
-			while((pos-1 != -1) && (k < n.keys[pos-1])){
-				n.keys[pos] = n.keys[pos-1];
-				n.children[pos] = n.children[pos-1];
-				pos--;
-			}
+			// Keep the packed size up to date; only the entries around pos change
+			boolean sized = packed && n.packedCount == n.count && n.count != 0;
+			if(sized && pos < len) n.packedBytes -= packedEntrySize(n.keys, n.children, pos);
+			
+			System.arraycopy(n.children, pos, n.children, pos+1, len-pos);
 			n.keys[pos] = k;
 			n.children[pos] = addr;
 			n.count--;
+			
+			if(sized){
+				n.packedBytes += packedEntrySize(n.keys, n.children, pos);
+				if(pos < len) n.packedBytes += packedEntrySize(n.keys, n.children, pos+1);
+				n.packedCount = n.count;
+			}
 		}
 		// Case for a nonLeaf
 		else if(nodeType == 1){
-			// Look through until we get to the value
-			while((pos-1 != -1) && (k < n.keys[pos-1])){
-				n.keys[pos] = n.keys[pos-1];
-				n.children[pos+1] = n.children[pos];
-				pos--;
-			}
-			
-			// Now find where to insert the value, same indexing as search
-			if(pos-1 == -1){
-				n.keys[0] = k;
-				n.children[1] = addr;
-			}else if(pos == len){
-				n.keys[len] = k;
-				n.children[len+1] = addr;
-			}else{
-				n.keys[pos] = k;
-				n.children[pos+1] = addr;
-			}
+			System.arraycopy(n.children, pos+1, n.children, pos+2, len-pos);
+			n.keys[pos] = k;
+			n.children[pos+1] = addr;
 			n.count++;
 		}
 	}
 	
 	/** Splitting a leaf */
-	private BTreeNode splitLeaf(BTreeNode left, int key, long addr) throws IOException{
+	private BTreeNode splitLeaf(BTreeNode left, long key, long addr) throws IOException{
+		BTreeNode right = newNode(getFree(left.address), LEAF);
+		int len = Math.abs(left.count);
+		int pos = childIndex(left, key); // Where key goes
 		
-        BTreeNode right = new BTreeNode(getFree(), LEAF, new int[order-1], new long[order]);
-        boolean insertedKey = false;
-        int[] tempKeys = new int[order]; //Holds all the keys
-        long[] tempChildren = new long[order+1]; //Holds all the children
-        int keysLength = Math.abs(left.count);
-        int endCase = keysLength-1;
-        
-        // Insert into temp array and insert key into right position
-        for(int i = 0, j = 0; i < keysLength; i++, j++) {
-            if(!insertedKey && key < left.keys[i]) {
-            	insertedKey = true;
-                tempKeys[j] = key;
-                tempChildren[j] = addr;
-                j++; // Move pos up for when we skip to the bottom assignment
-            } else if(i == endCase) {
-                //Last value of left node was smaller than key, put at end of temp array
-                tempKeys[j] = left.keys[i];
-                tempChildren[j] = left.children[i];
-                tempKeys[keysLength] = key;
-                tempChildren[keysLength] = addr;
-            }
-            // Fill in with remaining values
-            tempKeys[j] = left.keys[i];
-            tempChildren[j] = left.children[i];
-        }
-        
-        // Fill in keys and children for right side
-        for(int rightSide = tempKeys.length/2, i = 0; rightSide < tempKeys.length; rightSide++, i++) {
-            right.keys[i] = tempKeys[rightSide];
-            right.children[i] = tempChildren[rightSide];
-        }
-        
-        // Reset left side
-//        for(int i = 0; i < left.keys.length; i++)
-//        	left.keys[i] = 0;
-        
-        // Re-assign left side with our new values
-        for(int leftSide = 0; leftSide < tempKeys.length/2; leftSide++) {
-            left.keys[leftSide] = tempKeys[leftSide];
-            left.children[leftSide] = tempChildren[leftSide];
-        }
-        
-        right.count = (left.count/2) - 1; // Add one more to right
-        left.count = (tempKeys.length/2)*-1;
-        
-        right.children[keysLength] = left.children[keysLength]; // Take left's previous link 
-        left.children[keysLength] = right.address; // Link left to right node
-        
-        left.writeBTreeNode();
-        return right;
+		// All the keys in order, with the new one in its spot
+		long[] tempKeys = new long[len+1];
+		long[] tempChildren = new long[len+1];
+		System.arraycopy(left.keys, 0, tempKeys, 0, pos);
+		System.arraycopy(left.children, 0, tempChildren, 0, pos);
+		tempKeys[pos] = key;
+		tempChildren[pos] = addr;
+		System.arraycopy(left.keys, pos, tempKeys, pos+1, len-pos);
+		System.arraycopy(left.children, pos, tempChildren, pos+1, len-pos);
+		
+		// Left keeps the first half, right gets the rest
+		int half = (len+1) / 2;
+		System.arraycopy(tempKeys, 0, left.keys, 0, half);
+		System.arraycopy(tempChildren, 0, left.children, 0, half);
+		System.arraycopy(tempKeys, half, right.keys, 0, len+1-half);
+		System.arraycopy(tempChildren, half, right.children, 0, len+1-half);
+		left.count = -half;
+		right.count = -(len+1-half);
+		
+		right.children[right.keys.length] = left.children[left.keys.length]; // Take left's previous link
+		left.children[left.keys.length] = right.address; // Link left to right node
+		
+		left.writeBTreeNode();
+		return right;
 	}
 	
 	/** Create a new leaf and split the values from the current node into the current one and new node */
-    private int splitNonLeaf(BTreeNode left, BTreeNode right, int key, long addr) throws IOException{
-        int middle = 0; //default val
-        int[] tempKeys = new int[order];
+    private long splitNonLeaf(BTreeNode left, BTreeNode right, long key, long addr) throws IOException{
+        long middle = 0; //default val
+        long[] tempKeys = new long[order];
         long[] tempChildren = new long[order+1];
         boolean insertedKey = false;
         int keyLength = left.count;
@@ -321,6 +1408,7 @@ public class BTree {
                 tempChildren[j+1] = addr;
                 tempKeys[j+1] = left.keys[i];
                 tempChildren[j] = left.children[i];
+                if(i == endCase) tempChildren[j+2] = left.children[i+1]; // Don't lose the last child
                 j++;      
             }else if(i == endCase){
                 if(!insertedKey) {
@@ -369,532 +1457,1455 @@ public class BTree {
         return middle;
     }
 
+	/**
+	 * Start loading an empty B+tree from keys that are already sorted. This is
+	 * much faster than calling insert() for every key: the tree is built
+	 * from the leaves up and each node is written once, in order, as soon as
+	 * it's full.
+	 * @param fill -- how full to make each node, from 0 to 1. Use 1 for trees
+	 * that won't change, less to leave room for inserts.
+	 * @return the loader to add the keys to. Call finish() when done.
+	 */
+	public BulkLoader bulkLoad(double fill) throws IOException {
+		if(root != 0) throw new IllegalStateException("Can only bulk load an empty tree");
+		return new BulkLoader(fill);
+	}
+	
+	/**
+	 * Adds keys to the tree one level at a time. Each level only keeps its
+	 * last two nodes in memory: once a third is started, the first of the two
+	 * is written and its smallest key is passed up to the level above. The
+	 * last two are evened out in finish() so the last node isn't too small.
+	 */
+	public class BulkLoader {
+		private ArrayList<BulkLevel> levels = new ArrayList<>();
+		private int leafKeys; // Keys to put in each leaf
+		private int leafBytes; // Bytes to fill each packed leaf to
+		private int nonLeafChildren; // Children to put in each nonleaf
+		private boolean first = true;
+		private long last; // Last key added
+		
+		private BulkLoader(double fill){
+			int minLeaf = Math.max(1, (int) Math.ceil(order/2.0) - 1);
+			int minNonLeaf = Math.max(2, (int) Math.ceil(order/2.0));
+			leafKeys = Math.max(minLeaf, Math.min(order - 1, (int) Math.round(fill * (order-1))));
+			nonLeafChildren = Math.max(minNonLeaf, Math.min(order, (int) Math.round(fill * order)));
+			leafBytes = Math.max(PACKED_HEADER + MAX_PACKED_ENTRY, Math.min(nodeSize, (int) Math.round(fill * nodeSize)));
+		}
+		
+		/**
+		 * Add the next key
+		 * @param key -- must be bigger than the last key added
+		 * @param addr -- address of the row that contains the key
+		 * @return true if the key is added, false if it's out of order
+		 */
+		public boolean add(long key, long addr) throws IOException {
+			if(!first && key <= last) return false;
+			first = false;
+			last = key;
+			writer.lock();
+			try{
+				add(0, key, addr);
+				endOperation(); // Nothing's reachable until finish(), so committing early is safe
+			}finally{
+				writer.unlock();
+			}
+			return true;
+		}
+		
+		/** Write out what's left of each level and set the root */
+		public void finish() throws IOException {
+			writer.lock();
+			try{
+				// Finishing a level can add to the one above it, so go bottom up
+				for(int l = 0; l < levels.size(); l++){
+					BulkLevel level = levels.get(l);
+					if(l == levels.size() - 1 && level.prev == null){
+						// Only one node on the top level; that's the root, unless
+						// it's a nonleaf over a single node (merged in the level below)
+						if(!level.leaf && level.curSize == 1){
+							root = level.cur.children[0];
+							addFree(level.cur.address);
+						}else{
+							level.write(level.cur, level.curSize);
+							root = level.cur.address;
+						}
+					}else
+						level.finish(l);
+				}
+				levels.clear();
+				commit();
+			}finally{
+				writer.unlock();
+			}
+		}
+		
+		/** Add a key and the address it goes with to level l (0 is the leaves) */
+		private void add(int l, long key, long addr) throws IOException{
+			if(l == levels.size())
+				levels.add(new BulkLevel(l == 0));
+			BulkLevel level = levels.get(l);
+			
+			if(level.cur == null || level.full())
+				level.start(l);
+			level.append(key, addr);
+		}
+		
+		/** The two nodes a level is working on */
+		private class BulkLevel {
+			private boolean leaf;
+			private BTreeNode prev, cur;
+			private int prevSize, curSize; // Number of keys in a leaf, children in a nonleaf
+			private long prevMin, curMin; // Smallest key under a nonleaf
+			private int curBytes; // Size of cur if it's a packed leaf
+			
+			private BulkLevel(boolean isLeaf){
+				leaf = isLeaf;
+			}
+			
+			/** Start a new node, writing out prev to make room */
+			private void start(int l) throws IOException{
+				BTreeNode next = newNode(getFree(), leaf ? LEAF : NONLEAF);
+				if(prev != null) pass(l, prev, prevSize, prevMin);
+				if(leaf && cur != null) cur.children[cur.keys.length] = next.address; // Link leaves
+				prev = cur;
+				prevSize = curSize;
+				prevMin = curMin;
+				cur = next;
+				curSize = 0;
+				curBytes = PACKED_HEADER;
+			}
+			
+			/** Whether cur has all it should get */
+			private boolean full(){
+				if(leaf && packed)
+					return curSize == cur.keys.length || curBytes + MAX_PACKED_ENTRY > leafBytes;
+				return curSize == (leaf ? leafKeys : nonLeafChildren);
+			}
+			
+			private void append(long key, long addr){
+				if(leaf){
+					cur.keys[curSize] = key;
+					cur.children[curSize] = addr;
+					if(packed) curBytes += packedEntrySize(cur.keys, cur.children, curSize);
+				}else{
+					// The first child's key isn't kept in the node, but the parent needs it
+					if(curSize == 0) curMin = key;
+					else cur.keys[curSize-1] = key;
+					cur.children[curSize] = addr;
+				}
+				curSize++;
+			}
+			
+			/** Even out the last two nodes, write them, and pass them up */
+			private void finish(int l) throws IOException{
+				int min = leaf ? Math.max(1, (int) Math.ceil(order/2.0) - 1) : (int) Math.ceil(order/2.0);
+				if(leaf && packed) min = prevSize / 2;
+				
+				if(curSize < min){
+					if(fitsInPrev()) merge();
+					else balance();
+				}
+				
+				pass(l, prev, prevSize, prevMin);
+				if(cur != null) pass(l, cur, curSize, curMin);
+			}
+			
+			/** Whether prev could take everything in cur */
+			private boolean fitsInPrev(){
+				if(!(leaf && packed))
+					return prevSize + curSize <= (leaf ? order - 1 : order);
+				if(prevSize + curSize > prev.keys.length) return false;
+				
+				long[] keys = Arrays.copyOf(prev.keys, prevSize + curSize);
+				long[] children = Arrays.copyOf(prev.children, prevSize + curSize);
+				System.arraycopy(cur.keys, 0, keys, prevSize, curSize);
+				System.arraycopy(cur.children, 0, children, prevSize, curSize);
+				return packedSize(keys, children, prevSize + curSize) <= nodeSize;
+			}
+			
+			/** Move everything in cur onto the end of prev */
+			private void merge() throws IOException{
+				if(leaf){
+					System.arraycopy(cur.keys, 0, prev.keys, prevSize, curSize);
+					System.arraycopy(cur.children, 0, prev.children, prevSize, curSize);
+					prev.children[prev.keys.length] = cur.children[cur.keys.length];
+				}else{
+					prev.keys[prevSize-1] = curMin;
+					System.arraycopy(cur.keys, 0, prev.keys, prevSize, curSize-1);
+					System.arraycopy(cur.children, 0, prev.children, prevSize, curSize);
+				}
+				prevSize += curSize;
+				addFree(cur.address);
+				cur = null;
+			}
+			
+			/** Move keys from the end of prev to the front of cur until they're about even */
+			private void balance(){
+				int move = (prevSize + curSize) / 2 - curSize;
+				int from = prevSize - move; // First entry of prev that moves
+				
+				System.arraycopy(cur.children, 0, cur.children, move, curSize);
+				System.arraycopy(prev.children, from, cur.children, 0, move);
+				if(leaf){
+					System.arraycopy(cur.keys, 0, cur.keys, move, curSize);
+					System.arraycopy(prev.keys, from, cur.keys, 0, move);
+				}else{
+					// prev.keys[i-1] is the smallest key under prev.children[i]
+					System.arraycopy(cur.keys, 0, cur.keys, move, curSize-1);
+					cur.keys[move-1] = curMin;
+					System.arraycopy(prev.keys, from, cur.keys, 0, move-1);
+					curMin = prev.keys[from-1];
+				}
+				prevSize -= move;
+				curSize += move;
+			}
+			
+			/** Write a node and add it to the level above */
+			private void pass(int l, BTreeNode node, int size, long min) throws IOException{
+				write(node, size);
+				add(l + 1, leaf ? node.keys[0] : min, node.address);
+			}
+			
+			private void write(BTreeNode node, int size) throws IOException{
+				node.count = leaf ? -size : size - 1;
+				node.flush(); // Straight to the file, each node is only written once
+			}
+		}
+	}
+
 	/**
 	 * If key is in B+tree, remove the key.
 	 * @param key -- value to be removed from the tree
-	 * @return address of the row if key is in B+tree, 0 if not
+	 * @return address of the row if key is in B+tree, 0 if not. With
+	 * duplicate keys on, all of the key's rows go and one of them is returned.
+	 * 
+	 * A leaf left underfull stays that way until rebalance() is called, or
+	 * until setRebalanceAfter() leaves have built up if it was given one.
+	 * It's 0 for a new or opened tree, so by default that's never.
+	 */
+	public long remove(long key) throws IOException{
+		return remove(key, 0, true);
+	}
+	
+	/**
+	 * Remove one row of a key, the key itself once it has no rows left
+	 * @param key -- value to be removed from the tree
+	 * @param addr -- address of the row to take out
+	 * @return addr if key had that row, 0 if not
+	 */
+	public long remove(long key, long addr) throws IOException{
+		return remove(key, addr, false);
+	}
+	
+	private long remove(long key, long addr, boolean all) throws IOException{
+		writer.lock();
+		try{
+			long removed = removeLatched(key, addr, all);
+			unlatch(0);
+			endOperation();
+			if(rebalanceAfter > 0 && underfull.size() >= rebalanceAfter)
+				rebalance();
+			return removed;
+		}finally{
+			unlatch(0);
+			writer.unlock();
+		}
+	}
+	
+	private long removeLatched(long key, long addr, boolean all) throws IOException{
+		if(root == 0) return 0;
+		
+		BTreeNode node;
+		Deque<BTreeNode> path = searchPath(key, true);
+		long keyAddr = 0;
+		
+		node = path.pop();
+		
+		if(checkNode(node, key)){ // if k is in node
+			int pos = childIndex(node, key) - 1;
+			long rows = node.children[pos];
+			if(isPostings(rows) && all)
+				keyAddr = removePostings(-rows);
+			else if(isPostings(rows)){
+				long head = removePosting(-rows, addr);
+				if(head < 0) return 0;
+				if(head != 0){ // Still has rows, so the key stays
+					if(head != -rows){
+						node.children[pos] = -head;
+						node.writeBTreeNode();
+					}
+					return addr;
+				}
+				keyAddr = addr;
+			}else if(!all && rows != addr)
+				return 0;
+			
+			long removed = removeLeafKey(key, node); // remove it
+			if(!isPostings(rows)) keyAddr = removed;
+			// check if root is leaf
+			if(node.address == root){
+				// root is empty
+				if(node.count == 0){
+					addFree(root); // add the node to the free list
+					root = 0;
+					return keyAddr;
+				}
+				node.writeBTreeNode(); // update root
+			}else{
+				// Leave borrowing or combining to rebalance(). It finds the leaf
+				// by its smallest key, which still leads there once the parent's
+				// key changes below (an empty leaf keeps the removed key there).
+				if(isUnderfull(node)) underfull.put(node.address, node.keys[0]);
+				
+				if(changeMin){
+					BTreeNode parent = path.pop();
+					for(int i = 0; i < parent.count && key >= parent.keys[i]; i++)
+						if(key == parent.keys[i])
+							parent.keys[i] = node.keys[0];
+					changeMin = false;
+					parent.writeBTreeNode();
+				}
+				node.writeBTreeNode();
+				return keyAddr;
+			}
+		}
+		return keyAddr;
+ 	}
+	
+	/**
+	 * Merge the leaves removes have left less than half full into a
+	 * neighbor, or even them out with one if they won't fit, and the same
+	 * for the nodes above that end up short. Removes only note those
+	 * leaves, so each one rewrites a single leaf; this does the rest in a
+	 * batch, whenever it suits, or when setRebalanceAfter() says to.
+	 * 
+	 * Each leaf's merge holds the root latch for writing, so every search
+	 * waits for it, not just the ones going through the nodes being
+	 * merged. Cursors opened before it throw
+	 * ConcurrentModificationException if anything moved; snapshots aren't
+	 * affected.
+	 * @return the number of nodes freed
+	 */
+	public int rebalance() throws IOException{
+		writer.lock();
+		try{
+			// In key order, so neighbors are seen to one after another
+			TreeSet<Long> keys = new TreeSet<>(underfull.values());
+			underfull.clear();
+			int freed = 0;
+			for(long key : keys){
+				freed += rebalance(key);
+				unlatch(0);
+				endOperation();
+			}
+			return freed;
+		}finally{
+			unlatch(0);
+			writer.unlock();
+		}
+	}
+	
+	/**
+	 * Have removes call rebalance() once they've left this many leaves
+	 * underfull, so a tree that's mostly removed from doesn't stay half
+	 * empty. 0, and so off, for every tree until this is called, opened
+	 * ones included; DBTable turns it on for its trees.
+	 * @param leaves -- underfull leaves to let build up; 0 leaves it to the caller
+	 */
+	public void setRebalanceAfter(int leaves){
+		rebalanceAfter = leaves;
+	}
+	
+	/** Read back the notes close() kept. A note that's out of date only costs rebalance() a look */
+	private void readUnderfull() throws IOException{
+		File file = new File(underfullName);
+		if(!file.exists()) return;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+			while(true){
+				long addr = in.readLong();
+				underfull.put(addr, in.readLong());
+			}
+		}catch(EOFException e){
+			// The end of the notes
+		}
+	}
+	
+	/** Keep the notes for the next open, or drop their file if there aren't any */
+	private void writeUnderfull() throws IOException{
+		File file = new File(underfullName);
+		if(underfull.isEmpty()){
+			file.delete();
+			return;
+		}
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))){
+			for(Map.Entry<Long, Long> note : underfull.entrySet()){
+				out.writeLong(note.getKey());
+				out.writeLong(note.getValue());
+			}
+		}
+	}
+	
+	/** For the writer: rebalance the path to key, from the leaf up as far as it's short */
+	private int rebalance(long key) throws IOException{
+		if(root == 0) return 0;
+		
+		// Any node on the path can change, so latch all of it
+		latch(rootLatch.writeLock());
+		ArrayList<BTreeNode> path = new ArrayList<>();
+		ArrayList<Integer> taken = new ArrayList<>(); // Which child of each nonleaf
+		latchWrite(root);
+		BTreeNode node = readNode(root);
+		path.add(node);
+		while(!isLeaf(node)){
+			int pos = childIndex(node, key);
+			taken.add(pos);
+			latchWrite(node.children[pos]);
+			node = readNode(node.children[pos]);
+			path.add(node);
+		}
+		
+		int freed = 0;
+		for(int level = path.size() - 1; level > 0 && isUnderfull(path.get(level)); level--){
+			rebalances++;
+			boolean leaf = level == path.size() - 1; // Can't tell by count; both kinds can have none
+			if(!mergeChild(path.get(level - 1), taken.get(level - 1), path.get(level), leaf)) break;
+			freed++;
+		}
+		
+		// Down to one child at the top; it's the root now
+		BTreeNode top = path.get(0);
+		if(path.size() > 1 && top.count == 0){
+			root = top.children[0];
+			addFree(top.address);
+			freed++;
+		}
+		return freed;
+	}
+	
+	/** Less than half full, except that the root can be as empty as it likes */
+	private boolean isUnderfull(BTreeNode node){
+		if(node.address == root) return false;
+		if(packed && node.count < 0) return packedSize(node.keys, node.children, -node.count) < nodeSize / 2;
+		return Math.abs(node.count) < Math.ceil(order/2.0) - 1;
+	}
+	
+	/**
+	 * For the writer: merge child, at pos in parent, with the neighbor on
+	 * its right or left, or if it won't fit in either, even them out. A
+	 * parent left with no keys isn't written; the level above sees to it.
+	 * @return true if they were merged and parent lost a key
+	 */
+	private boolean mergeChild(BTreeNode parent, int pos, BTreeNode child, boolean leaf) throws IOException{
+		int[] pairs = pos == parent.count ? new int[]{pos - 1} : pos == 0 ? new int[]{pos} : new int[]{pos, pos - 1};
+		BTreeNode[] left = new BTreeNode[pairs.length];
+		BTreeNode[] right = new BTreeNode[pairs.length];
+		for(int p = 0; p < pairs.length; p++){
+			int j = pairs[p]; // The pair is children j and j+1
+			left[p] = j == pos ? child : readLatched(parent.children[j]);
+			right[p] = j == pos ? readLatched(parent.children[j+1]) : child;
+			if(leaf ? mergeLeaves(left[p], right[p]) : mergeNonLeaves(left[p], right[p], parent.keys[j])){
+				// right is gone, and so is the key between them
+				System.arraycopy(parent.keys, j + 1, parent.keys, j, parent.count - j - 1);
+				System.arraycopy(parent.children, j + 2, parent.children, j + 1, parent.count - j - 1);
+				parent.count--;
+				if(parent.count > 0) parent.writeBTreeNode();
+				underfull.remove(right[p].address);
+				addFree(right[p].address);
+				return true;
+			}
+		}
+		
+		long sep = parent.keys[pairs[0]];
+		long middle = leaf ? evenLeaves(left[0], right[0], sep) : evenNonLeaves(left[0], right[0], sep);
+		if(middle != parent.keys[pairs[0]]){
+			parent.keys[pairs[0]] = middle;
+			parent.writeBTreeNode();
+		}
+		return false;
+	}
+	
+	/** Move right's entries onto the end of left if they fit @return true if they did */
+	private boolean mergeLeaves(BTreeNode left, BTreeNode right) throws IOException{
+		int a = -left.count;
+		int b = -right.count;
+		if(a + b > left.keys.length) return false;
+		long[] keys = Arrays.copyOf(left.keys, a + b);
+		long[] children = Arrays.copyOf(left.children, a + b);
+		System.arraycopy(right.keys, 0, keys, a, b);
+		System.arraycopy(right.children, 0, children, a, b);
+		if(packed && packedSize(keys, children, a + b) > nodeSize) return false;
+		
+		System.arraycopy(keys, 0, left.keys, 0, a + b);
+		System.arraycopy(children, 0, left.children, 0, a + b);
+		left.children[left.keys.length] = right.children[right.keys.length];
+		left.count = -(a + b);
+		left.writeBTreeNode();
+		return true;
+	}
+	
+	/** Move sep and right's keys and children onto the end of left if they fit @return true if they did */
+	private boolean mergeNonLeaves(BTreeNode left, BTreeNode right, long sep) throws IOException{
+		int a = left.count;
+		int b = right.count;
+		if(a + 1 + b > order - 1) return false;
+		left.keys[a] = sep;
+		System.arraycopy(right.keys, 0, left.keys, a + 1, b);
+		System.arraycopy(right.children, 0, left.children, a + 1, b + 1);
+		left.count = a + 1 + b;
+		left.writeBTreeNode();
+		return true;
+	}
+	
+	/**
+	 * Move entries between two neighboring leaves so they have about as
+	 * many each. Packed leaves are left as they are, since their room goes
+	 * by bytes; a packed leaf that won't merge is well over half full.
+	 * @return the key the parent should have between them, sep if it's the same
+	 */
+	private long evenLeaves(BTreeNode left, BTreeNode right, long sep) throws IOException{
+		if(packed) return sep;
+		int a = -left.count;
+		int b = -right.count;
+		int n = (a + b) / 2; // For left
+		if(n > a){ // From the front of right
+			System.arraycopy(right.keys, 0, left.keys, a, n - a);
+			System.arraycopy(right.children, 0, left.children, a, n - a);
+			System.arraycopy(right.keys, n - a, right.keys, 0, b - (n - a));
+			System.arraycopy(right.children, n - a, right.children, 0, b - (n - a));
+		}else if(n < a){ // From the end of left
+			System.arraycopy(right.keys, 0, right.keys, a - n, b);
+			System.arraycopy(right.children, 0, right.children, a - n, b);
+			System.arraycopy(left.keys, n, right.keys, 0, a - n);
+			System.arraycopy(left.children, n, right.children, 0, a - n);
+		}else
+			return sep;
+		left.count = -n;
+		right.count = -(a + b - n);
+		left.writeBTreeNode();
+		right.writeBTreeNode();
+		return right.keys[0];
+	}
+	
+	/**
+	 * Move keys between two neighboring nonleaves, through sep in the
+	 * parent, so they have about as many each
+	 * @return the key the parent should have between them now
+	 */
+	private long evenNonLeaves(BTreeNode left, BTreeNode right, long sep) throws IOException{
+		int a = left.count;
+		int b = right.count;
+		long[] keys = new long[a + b + 1];
+		long[] children = new long[a + b + 2];
+		System.arraycopy(left.keys, 0, keys, 0, a);
+		keys[a] = sep;
+		System.arraycopy(right.keys, 0, keys, a + 1, b);
+		System.arraycopy(left.children, 0, children, 0, a + 1);
+		System.arraycopy(right.children, 0, children, a + 1, b + 1);
+		
+		int n = (a + b) / 2; // For left; the key after them goes up
+		System.arraycopy(keys, 0, left.keys, 0, n);
+		System.arraycopy(children, 0, left.children, 0, n + 1);
+		System.arraycopy(keys, n + 1, right.keys, 0, a + b - n);
+		System.arraycopy(children, n + 1, right.children, 0, a + b - n + 1);
+		left.count = n;
+		right.count = a + b - n;
+		left.writeBTreeNode();
+		right.writeBTreeNode();
+		return keys[n];
+	}
+	
+	/** Take out a key from a leaf node */
+	private long removeLeafKey(long key, BTreeNode node){
+		node.count++; // free up space in node
+		int max = Math.abs(node.count);
+		long keyAddr;
+		int pos = Arrays.binarySearch(node.keys, 0, max+1, key);
+		
+		if(pos == 0 && root != node.address)
+			changeMin = true;
+		
+		keyAddr = node.children[pos];
+		
+		System.arraycopy(node.keys, pos+1, node.keys, pos, max-pos);
+		System.arraycopy(node.children, pos+1, node.children, pos, max-pos);
+		return keyAddr;
+	}
+	
+	/**
+	 * Equality search for the value k
+	 * @param k
+	 * @return if key is found, address of the row with the key is returned
+	 * (otherwise 0)
+	 */
+	public long search(long k) throws IOException{
+		if(mapped) return searchMapped(k);
+		
+		Lock held = rootLatch.readLock();
+		held.lock();
+		try{
+			long r = root;
+			held = couple(held, r);
+			BTreeNode x = readNode(r);
+			
+			while(x.address != 0 && !isLeaf(x)){
+				long child = x.children[childIndex(x, k)];
+				held = couple(held, child);
+				x = readNode(child);
+			}
+			
+			if(x.address == 0) return 0;
+			
+			int i = findKey(x, k);
+			if(i < 0) return 0;
+			return isPostings(x.children[i]) ? firstPosting(-x.children[i]) : x.children[i];
+		}finally{
+			held.unlock();
+		}
+	}
+	
+	/**
+	 * Look up lots of keys at once. The keys are sorted and go down the tree
+	 * together, only splitting up where they go to different children, so
+	 * each node on the way to any of them is read once instead of once per
+	 * key. The closer together the keys, the more nodes they share.
+	 * @param keys -- keys to look up, in any order
+	 * @param results -- gets what search() would return for each key, in the
+	 * same order as keys
+	 */
+	public void searchBatch(long[] keys, long[] results) throws IOException{
+		if(results.length < keys.length) throw new IllegalArgumentException("Need a result for every key");
+		
+		// Sort the keys and drop repeats
+		long[] sorted = keys.clone();
+		Arrays.sort(sorted);
+		int n = 0;
+		for(int i = 0; i < sorted.length; i++)
+			if(n == 0 || sorted[i] != sorted[n-1]) sorted[n++] = sorted[i];
+		long[] found = new long[n];
+		
+		Lock held = rootLatch.readLock();
+		held.lock();
+		try{
+			long r = root;
+			if(r != 0 && n > 0){
+				held = couple(held, r);
+				searchBatch(r, sorted, 0, n, found);
+			}
+		}finally{
+			held.unlock();
+		}
+		
+		for(int i = 0; i < keys.length; i++)
+			results[i] = found[Arrays.binarySearch(sorted, 0, n, keys[i])];
+	}
+	
+	/** searchBatch() for int keys */
+	public void searchBatch(int[] keys, long[] results) throws IOException{
+		searchBatch(Arrays.stream(keys).asLongStream().toArray(), results);
+	}
+	
+	/** Look up sorted[lo] to sorted[hi-1] under the node at addr, which is read latched */
+	private void searchBatch(long addr, long[] sorted, int lo, int hi, long[] found) throws IOException{
+		BTreeNode node = readNode(addr);
+		if(isLeaf(node)){
+			for(int i = lo; i < hi; i++){
+				int pos = findKey(node, sorted[i]);
+				if(pos < 0) continue;
+				found[i] = isPostings(node.children[pos]) ? firstPosting(-node.children[pos]) : node.children[pos];
+			}
+			return;
+		}
+		
+		// Each run of keys that goes to the same child goes down together
+		while(lo < hi){
+			int pos = childIndex(node, sorted[lo]);
+			int next = lo + 1;
+			while(next < hi && (pos == node.count || sorted[next] < node.keys[pos]))
+				next++;
+			
+			// The path stays latched, so the children we come back to haven't split
+			long child = node.children[pos];
+			Lock l = latchFor(child).readLock();
+			l.lock();
+			try{
+				searchBatch(child, sorted, lo, next, found);
+			}finally{
+				l.unlock();
+			}
+			lo = next;
+		}
+	}
+	
+	/** Whether a leaf's child is a posting list rather than a row */
+	private boolean isPostings(long child){
+		return duplicates && child < 0;
+	}
+	
+	/** With the leaf it hangs off latched: the first row of a posting list */
+	private long firstPosting(long head) throws IOException{
+		if(head + nodeSize <= mappedEnd)
+			return segment(head).getLong(offset(head) + POSTING_HEADER);
+		ByteBuffer b = nodeBuffer.get();
+		readBlock(head, b);
+		return b.getLong(POSTING_HEADER);
+	}
+	
+	/** Same as search(), but reads keys and children right out of the mapping */
+	private long searchMapped(long k) throws IOException{
+		Lock held = rootLatch.readLock();
+		held.lock();
+		try{
+			long r = root;
+			held = couple(held, r);
+			while(r != 0){
+				MappedByteBuffer m = segment(r);
+				int node = offset(r);
+				int count = m.getInt(node);
+				if(count <= 0 && packed) return searchPacked(m, node, count, k);
+				int keys = node + 4; // where keys[0] is
+				int children = node + childOffset; // where children[0] is
+				
+				// Binary search for the number of keys <= k
+				int lo = 0;
+				int hi = Math.abs(count);
+				while(lo < hi){
+					int mid = (lo + hi) >>> 1;
+					if(k < keyAt(m, keys, mid)) hi = mid;
+					else lo = mid + 1;
+				}
+				
+				if(count <= 0){ // Leaf, k is just before lo if it's here
+					if(lo == 0 || k != keyAt(m, keys, lo-1)) return 0;
+					long addr = m.getLong(children + 8 * (lo-1));
+					return isPostings(addr) ? firstPosting(-addr) : addr;
+				}
+				r = m.getLong(children + 8 * lo);
+				if(r != 0) held = couple(held, r);
+			}
+			return 0;
+		}finally{
+			held.unlock();
+		}
+	}
+	
+	/** Key i of the node whose keys start at keys in the mapping */
+	private long keyAt(MappedByteBuffer m, int keys, int i){
+		return keyBytes == 4 ? m.getInt(keys + 4 * i) : m.getLong(keys + 8 * i);
+	}
+	
+	/** Look for k in the packed leaf at node in the mapping, decoding as we go */
+	private long searchPacked(MappedByteBuffer m, int node, int count, long k){
+		ByteBuffer b = m.duplicate();
+		b.position(node + PACKED_HEADER);
+		long key = 0;
+		long addr = 0;
+		for(int i = 0; i < -count; i++){
+			key = i == 0 ? unzigzag(getVarint(b)) : key + getVarint(b);
+			addr += unzigzag(getVarint(b));
+			if(key >= k) return key == k ? addr : 0;
+		}
+		return 0;
+	}
+
+	/**
+	 * PRE: low <= high
+	 * @param low -- low end of key range
+	 * @param high -- high end of key range
+	 * @return a list of row addresses for all keys in the range low to high (inclusive)
+	 * @return empty list when no keys are in the range
+	 */
+	public LinkedList<Long> rangeSearch(long low, long high) throws IOException{
+		LinkedList<Long> list = new LinkedList<>();
+		try{
+			rangeCursor(low, high).forEachRemaining((long addr) -> list.add(addr));
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+		return list;
+	}
+	
+	/**
+	 * Range search that hands back the row addresses one at a time instead
+	 * of building a list, so it runs in the same memory however wide the
+	 * range is. Only one leaf is read at a time, and stopping early just
+	 * means not asking for more.
+	 * @param low -- low end of key range
+	 * @param high -- high end of key range
+	 * @return cursor over the row addresses, by increasing key
+	 */
+	public RangeCursor rangeCursor(long low, long high) throws IOException{
+		return new RangeCursor(low, high, false, null);
+	}
+	
+	/**
+	 * @param reverse -- true to go from high down to low
+	 */
+	public RangeCursor rangeCursor(long low, long high, boolean reverse) throws IOException{
+		return new RangeCursor(low, high, reverse, null);
+	}
+	
+	/** Every row address that goes with key k, read lazily like rangeCursor() */
+	public LongStream searchAll(long k) throws IOException{
+		return rangeStream(k, k);
+	}
+	
+	/** The row addresses for keys low to high as a stream, read lazily like rangeCursor() */
+	public LongStream rangeStream(long low, long high) throws IOException{
+		return stream(rangeCursor(low, high));
+	}
+	
+	private static LongStream stream(RangeCursor cursor){
+		Spliterator.OfLong s = Spliterators.spliteratorUnknownSize(cursor,
+				Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.longStream(s, false);
+	}
+	
+	/**
+	 * Take a snapshot of the tree: a view of it as it is now, which inserts
+	 * and removes from here on don't change. Reading it takes no latches, so
+	 * a long scan neither waits on the writer nor holds it up. While it's
+	 * open the writer keeps a copy of each node it changes, so close it
+	 * when done. compact() ends all open snapshots; reading one after
+	 * throws ConcurrentModificationException.
+	 */
+	public Snapshot snapshot(){
+		writer.lock();
+		try{
+			epoch++;
+			snapshots.add(epoch);
+			snapshotEnd = end;
+			return new Snapshot(epoch, root);
+		}finally{
+			writer.unlock();
+		}
+	}
+	
+	/**
+	 * Walks the leaves for a range search. Going forward it follows the links
+	 * between leaves; going backward it looks up the leaf on the left from
+	 * the root again, since an insert may have split the nodes above us
+	 * since we came down. Keys inserted or removed while a cursor is open
+	 * may or may not be seen, but the ones that stay put always are. With
+	 * duplicate keys, all of a key's rows are handed out before moving on;
+	 * rows added or removed while the cursor is in the middle of them may or
+	 * may not be seen, and may take the rows moved to fill their place with
+	 * them.
+	 * 
+	 * Read errors are thrown as UncheckedIOException.
 	 */
-	public long remove(int key) throws IOException{
-		// Not implemented until HW 8!
-		if(root == 0) return 0;
+	public class RangeCursor implements PrimitiveIterator.OfLong {
+		private long low, high;
+		private boolean reverse;
+		private boolean done;
+		private BTreeNode leaf; // Our own copy of the current leaf
+		private int i; // Index in leaf of the next key to hand out
+		private long key; // Key of the last address handed out
 		
-		BTreeNode node;
-		BTreeNode child;
-		Stack<BTreeNode> path = searchPath(key);
-		boolean tooSmall = false;
-		long keyAddr = 0;
+		// Rows of a duplicate key, a posting page at a time
+		private long[] postings;
+		private int posting; // Index of the next row to hand out
+		private int postingCount;
+		private long postingNext; // Next page, 0 at the end
 		
-		node = path.pop();
+		// The nonleaves above leaf and which child we took from each
+		private long[] pathAddr = new long[8];
+		private int[] pathPos = new int[8];
+		private int depth;
+		private int layout = compactions; // compact() moves everything
+		private int moved = rebalances; // And rebalance() moves keys between leaves
+		private Snapshot snapshot; // What we're reading, null for the tree as it is
 		
-		if(checkNode(node, key)){ // if k is in node
-			keyAddr = removeLeafKey(key, node); // remove it
-			// check if root is leaf
-			if(node.address == root){
-				// root is empty
-				if(node.count == 0){
-					addFree(root); // add the node to the free list
-					root = 0;
-					return keyAddr;
-				}
-				node.writeBTreeNode(); // update root
-			}else{
-				// need to borrow or combine
-				if(minKeys(node)) tooSmall = true;
-				
-//				BTreeNode parent = path.pop();
-//				for(int i = 0; i < parent.count && key >= parent.keys[i]; i++){
-//					if(key == parent.keys[i]) parent.keys[i] = node.keys[0];
-//				}
-//				node.writeBTreeNode();
-//				parent.writeBTreeNode();
-//				return keyAddr;
-				if(changeMin){
-					BTreeNode parent = path.pop();
-					for(int i = 0; i < parent.count && key >= parent.keys[i]; i++)
-						if(key == parent.keys[i])
-							parent.keys[i] = node.keys[0];
-					changeMin = false;
-					parent.writeBTreeNode();
-				}
-				node.writeBTreeNode();
-				return keyAddr;
-			}
-		}
-		else
-			return keyAddr;
+		// For readahead: the children of leaf's parent, which one leaf is,
+		// and the leaves being read ahead
+		private long[] siblings;
+		private int siblingCount;
+		private int sibling;
+		private HashMap<Long, Future<BTreeNode>> ahead = new HashMap<>();
 		
-		while(!path.empty() && tooSmall){
-			child = node;
-			node = path.pop();
+		private RangeCursor(long lo, long hi, boolean rev, Snapshot from) throws IOException{
+			low = lo;
+			high = hi;
+			reverse = rev;
+			snapshot = from;
+			if(from != null) layout = from.layout;
+			leaf = newNode(0, LEAF);
 			
-			if(changeMin){
-				for(int i = 0; i < node.count && key >= node.keys[i]; i++)
-					if(key == node.keys[i])
-						node.keys[i] = child.keys[0];
-				changeMin = false;
+			descend(reverse ? high : low);
+			if(leaf.address == 0 || low > high){
+				done = true;
+				return;
 			}
 			
-			// check neighbors of the child
-			int borrowPos = canBorrow(node, child);
-			// if borrowing is possible
-			if(borrowPos != -1){
-				// shift vals between children and adjust the key in node that is b/n the nodes involved in borrowing
-				//borrow(borrowPos, node, child);
-				borrow(node, child, borrowPos);
-				tooSmall = false;
-			}else{
-				// combine child with a neighbor and remove the key in node b/n the nodes involved in combining
-				// if num keys in node is greater than or equal to the minimum required
-				//combine(child, node);
-				int combinePos = combinePartner(node, child);
-				combine(node, child, combinePos);
-				if(!minKeys(node)) tooSmall = false;
+			if(reverse)
+				i = childIndex(leaf, high) - 1; // Last key <= high
+			else{
+				i = Arrays.binarySearch(leaf.keys, 0, Math.abs(leaf.count), low);
+				if(i < 0) i = -(i + 1); // First key >= low
+				readAhead();
 			}
 		}
 		
-		if(tooSmall){ // Means the root is now empty
-			// set root to leftmost child of the empty root and free the space used by the old root
-			root = node.children[0];
-			addFree(node.address);
+		@Override
+		public boolean hasNext(){
+			if(done) return false;
+			
+			try{
+				checkLayout();
+				while(posting == postingCount && postingNext != 0)
+					readPostings(postingNext);
+				if(posting < postingCount) return true;
+				
+				if(reverse){
+					while(i < 0)
+						if(!previousLeaf()) done = true;
+					done = done || leaf.keys[i] < low;
+				}else{
+					while(i >= Math.abs(leaf.count)){
+						long next = leaf.children[leaf.keys.length];
+						if(next == 0){
+							done = true;
+							break;
+						}
+						nextLeaf(next);
+						i = 0;
+					}
+					done = done || leaf.keys[i] > high;
+				}
+			}catch(IOException e){
+				throw new UncheckedIOException(e);
+			}
+			return !done;
 		}
 		
-		return keyAddr;
- 	}
-	
-	/** Take out a key from a leaf node */
-	private long removeLeafKey(int key, BTreeNode node){
-		node.count++; // free up space in node
-		int max = Math.abs(node.count);
-		long keyAddr;
-		int pos = 0;
-		
-		while(node.keys[pos] != key)
-			pos++;
-		
-		if(pos == 0 && root != node.address)
-			changeMin = true;
-		
-		keyAddr = node.children[pos];
-		
-		while(pos < max){
-			node.keys[pos] = node.keys[pos+1];
-			node.children[pos] = node.children[pos+1];
-			pos++;
+		@Override
+		public long nextLong(){
+			while(true){
+				if(!hasNext()) throw new NoSuchElementException();
+				if(posting < postingCount) return postings[posting++];
+				
+				key = leaf.keys[i];
+				long addr = leaf.children[i];
+				i += reverse ? -1 : 1;
+				if(!isPostings(addr)) return addr;
+				
+				postingNext = -addr; // Hand out its rows next
+			}
 		}
-		return keyAddr;
-	}
-	
-	/** Check where we can borrow space from */
-	private int canBorrow(BTreeNode parent, BTreeNode keyChild) throws IOException{
-		int borrow = -1;
-		
-		long childAddr = keyChild.address;
-		
-		int pos = 0;
-		int childLimit = Math.abs(parent.count);
 		
-		while(parent.children[pos] != childAddr)
-			pos++;
+		/** The key that goes with the last address from nextLong() */
+		public long key(){
+			return key;
+		}
 		
-		if(pos == 0){
-			BTreeNode right = new BTreeNode(parent.children[1]);
-			if(hasExtraKeys(right)) borrow = 1;
-		}else if(pos == childLimit){
-			BTreeNode left = new BTreeNode(parent.children[childLimit - 1]);
-			if(hasExtraKeys(left)) borrow = childLimit - 1;
-		}else{
-			BTreeNode left = new BTreeNode(parent.children[pos-1]);
-			if(hasExtraKeys(left)) borrow = pos - 1;
-			else{
-				BTreeNode right = new BTreeNode(parent.children[pos+1]);
-				if(hasExtraKeys(right)) borrow = pos + 1;
+		/** Copy the leaf k would be in into ours, keeping the path to it */
+		private void descend(long k) throws IOException{
+			depth = 0;
+			if(snapshot != null){ // Nothing to latch, nothing in it changes
+				BTreeNode node = snapshot.root == 0 ? newNode(0, LEAF) : snapshot.readNode(snapshot.root, leaf);
+				while(node.address != 0 && !isLeaf(node)){
+					int pos = childIndex(node, k);
+					push(node.address, pos);
+					node = snapshot.readNode(node.children[pos], leaf);
+				}
+				leaf.address = node.address;
+				return;
+			}
+			
+			Lock held = rootLatch.readLock();
+			held.lock();
+			try{
+				long addr = root;
+				held = couple(held, addr);
+				BTreeNode node = readNode(addr);
+				siblingCount = 0;
+				while(node.address != 0 && !isLeaf(node)){
+					int pos = childIndex(node, k);
+					long child = node.children[pos];
+					push(node.address, pos);
+					if(readahead > 0 && !reverse) keepSiblings(node, pos);
+					held = couple(held, child);
+					node = readNode(child);
+				}
+				
+				if(node.address == 0) leaf.address = 0;
+				else readNode(node.address, leaf);
+			}finally{
+				held.unlock();
 			}
 		}
-		return borrow;
-	}
-	
-	/** Helper method to decide whether to borrow from either a leaf or nonleaf */
-	private void borrow(BTreeNode parent, BTreeNode child, int pos) throws IOException{
-		BTreeNode borrowPartner = new BTreeNode(parent.children[pos]);
-//		boolean isBorrowLeft = false;
-//		
-//		// borrow partner is on the left
-//		if(borrowPartner.keys[0] < child.keys[0]) isBorrowLeft = true;
 		
-		// leaf borrowing
-		if(isLeaf(child)){
-			// borrow from the left
-			if(borrowPartner.keys[0] < child.keys[0])
-				borrowFromLeaf(borrowPartner, child, parent, true);
-			else
-				borrowFromLeaf(borrowPartner, child, parent, false);
+		/** Move to the last key of the leaf to the left, false if there isn't one */
+		private boolean previousLeaf() throws IOException{
+			// Find where the key just below this leaf is now
+			if(leaf.count != 0){ // An empty one has no key to go by, but we have its path
+				long first = leaf.keys[0];
+				if(first == Long.MIN_VALUE){
+					i = 0;
+					return false;
+				}
+				descend(first - 1);
+				if(leaf.address == 0){
+					i = 0;
+					return false;
+				}
+				i = childIndex(leaf, first - 1) - 1;
+				if(i >= 0) return true;
+			}
+			
+			// None there, go up until there's a child to the left
+			int level = depth - 1;
+			while(level >= 0 && pathPos[level] == 0)
+				level--;
+			if(level < 0){
+				i = 0;
+				return false;
+			}
 			
-			child.count--;
-			borrowPartner.count++;
-		}else{ // nonleaf borrow
-			// borrow from the left
-			if(borrowPartner.keys[0] < child.keys[0])
-				borrowFromNonLeaf(borrowPartner, child, parent, true, pos);
-			else
-				borrowFromNonLeaf(borrowPartner, child, parent, false, pos);
+			depth = level;
+			if(snapshot != null){
+				BTreeNode node = snapshot.readNode(pathAddr[level], leaf);
+				int pos = Math.min(pathPos[level] - 1, node.count);
+				while(!isLeaf(node)){
+					push(node.address, pos);
+					node = snapshot.readNode(node.children[pos], leaf);
+					pos = node.count;
+				}
+				i = Math.abs(leaf.count) - 1;
+				return true;
+			}
 			
-			child.count++;
-			borrowPartner.count--;
+			Lock held = latchFor(pathAddr[level]).readLock();
+			held.lock();
+			try{
+				BTreeNode node = readNode(pathAddr[level]);
+				int pos = Math.min(pathPos[level] - 1, node.count);
+				
+				// Then down the right edge
+				while(!isLeaf(node)){
+					long child = node.children[pos];
+					push(node.address, pos);
+					held = couple(held, child);
+					node = readNode(child);
+					pos = node.count;
+				}
+				
+				readNode(node.address, leaf);
+			}finally{
+				held.unlock();
+			}
+			i = Math.abs(leaf.count) - 1;
+			return true;
 		}
 		
-		child.writeBTreeNode();
-		parent.writeBTreeNode();
-		borrowPartner.writeBTreeNode();
-	}
-	
-	/**  */
-	private int combinePartner(BTreeNode parent, BTreeNode keyChild) throws IOException{
-		long keyChildAddr = keyChild.address;
-		int pos = 0;
-		
-		while(keyChildAddr != parent.children[pos])
-			pos++;
-		
-		if(pos == 0)
-			return 1;
-		
-		else
-			return pos - 1;
-	}
-	
-	/**  */
-	private void combine(BTreeNode parent, BTreeNode child, int partnerAddr) throws IOException{
-		BTreeNode partner = new BTreeNode(parent.children[partnerAddr]);
-		int parentKeyPos;
-		
-		if(child.address == parent.children[0])
-			parentKeyPos = 0;
-		else
-			parentKeyPos = partnerAddr;
-		
-		if(isLeaf(child))
-			combineLeaf(partner, parent, child, parentKeyPos);
-		else
-			combineNonLeaf(partner, parent, child, parentKeyPos);
-		
-		while(parentKeyPos != parent.count && parentKeyPos+2 < parent.children.length){
-			parent.keys[parentKeyPos] = parent.keys[parentKeyPos+1];
-			parent.children[parentKeyPos+1] = parent.children[parentKeyPos+2];
-			parentKeyPos++;
+		/** Anything read since the tree was compacted came from where it used to be */
+		private void checkLayout(){
+			if(layout != compactions) throw new ConcurrentModificationException("Tree was compacted");
+			if(snapshot == null && moved != rebalances) throw new ConcurrentModificationException("Tree was rebalanced");
 		}
-        //parent.children[parentKeyPos] = parent.children[parentKeyPos+1];
-        
-        parent.count--;
-        parent.writeBTreeNode();
-	}
-	
-	/**  */
-	private void combineLeaf(BTreeNode partner, BTreeNode parent, BTreeNode child, int parentKeyPos) throws IOException{
-		int newKeyTotal = child.count + partner.count; 
-
-		int posChild = Math.abs(child.count);
-		int posPartner = Math.abs(partner.count);
-
-		int posTotal = posChild + posPartner;
-		if(child.address == parent.children[0]) {
-			for(int i = posChild, j = 0; i < posTotal; i++, j++) {
-				child.keys[i] = partner.keys[j];
-				child.children[i] = partner.children[j]; 
+		
+		/** Copy the rows on the posting page at addr, if it's still one of key's */
+		private void readPostings(long addr) throws IOException{
+			if(postings == null) postings = new long[postingMax];
+			posting = 0;
+			postingCount = 0;
+			postingNext = 0;
+			
+			ByteBuffer b = nodeBuffer.get();
+			if(snapshot != null) snapshot.readBlock(addr, b);
+			else{
+				Lock l = latchFor(addr).readLock();
+				l.lock();
+				try{
+					readBlock(addr, b);
+				}finally{
+					l.unlock();
+				}
 			}
-
-			child.count = newKeyTotal;
-			child.children[child.keys.length] = partner.children[partner.keys.length]; //swap next reference 
-			child.writeBTreeNode();
-			addFree(partner.address);
-		} else {
-			for(int i = posPartner, j = 0; i < posTotal; i++, j++) {
-				partner.keys[i] = child.keys[j];
-				partner.children[i] = child.children[j]; 
-			} 
-
-			partner.count = newKeyTotal;
-			partner.children[partner.keys.length] = child.children[child.keys.length];
-			partner.writeBTreeNode();
-			addFree(child.address);
+			checkLayout();
+			if(b.getInt(0) != POSTINGS || b.getLong(8) != key) return; // Freed since
+			postingCount = b.getInt(4);
+			postingNext = b.getLong(16);
+			b.position(POSTING_HEADER);
+			b.asLongBuffer().get(postings, 0, postingCount);
 		}
-	}
-	
-	/**  */
-    private void combineNonLeaf(BTreeNode partner, BTreeNode parent, BTreeNode child, int parentKeyPos) throws IOException {
-        int newKeyTotal = child.count + partner.count + 1; 
-        int posChild = child.count;
-        int posPartner = partner.count;
-        
-        if(child.address == parent.children[0]) {
-            child.keys[posChild] = parent.keys[parentKeyPos];
-            posChild++;
-            for(int j = 0; posChild < newKeyTotal; posChild++, j++) {
-                child.keys[posChild] = partner.keys[j];
-                child.children[posChild] = partner.children[j];
-            }
-            
-            child.children[newKeyTotal] = partner.children[posPartner];
-            child.count = newKeyTotal;
-            child.writeBTreeNode();
-            addFree(partner.address);
-        } else {
-            partner.keys[posPartner] = parent.keys[parentKeyPos];
-            posPartner++;
-            for(int j = 0; posPartner < newKeyTotal; posPartner++, j++) {
-                partner.keys[posPartner] = child.keys[j];
-                partner.children[posPartner] = child.children[j];
-            }
-            
-            partner.children[newKeyTotal] = child.children[posChild];
-            partner.count = newKeyTotal;
-            partner.writeBTreeNode();
-            addFree(child.address);
-        }
-    }
-	
-    /** Helper method to grab values from a leaf node */
-	private void borrowFromLeaf(BTreeNode borrowPartner, BTreeNode child, BTreeNode parent, boolean left){
-		int maxCKeys = Math.abs(child.count); // current info
-		int maxBKeys = Math.abs(borrowPartner.count); // borrow info
-		int parentKeys = parent.count; // parent info
 		
-		if(left){
-			for(int i = maxCKeys; i > 0; i--){
-				child.keys[i] = child.keys[i-1];
-				child.children[i] = child.children[i-1];
-			}
-			child.keys[0] = borrowPartner.keys[maxBKeys-1];
-			child.children[0] = borrowPartner.children[maxBKeys-1];
+		/** Copy the children of the node above a leaf, for readahead */
+		private void keepSiblings(BTreeNode parent, int pos){
+			if(siblings == null) siblings = new long[order];
+			siblingCount = parent.count + 1;
+			System.arraycopy(parent.children, 0, siblings, 0, siblingCount);
+			sibling = pos;
+		}
+		
+		/** Start reading the next few leaves under our parent that aren't cached */
+		private void readAhead(){
+			int n = readahead;
+			ExecutorService pool = readers;
+			if(n == 0 || pool == null) return;
 			
-			// Change parent key value
-			for(int i = 0; i < parentKeys; i++){
-				if(child.keys[0] < parent.keys[i]){
-					parent.keys[i] = child.keys[0];
-					break;
+			for(int j = sibling + 1; j < siblingCount && j <= sibling + n; j++){
+				long addr = siblings[j];
+				if(ahead.containsKey(addr)) continue;
+				synchronized(cache){
+					if(cache.containsKey(addr)) continue;
+				}
+				try{
+					ahead.put(addr, pool.submit(() -> {
+						Lock l = latchFor(addr).readLock();
+						l.lock();
+						try{
+							return readNode(addr, newNode(0, LEAF));
+						}finally{
+							l.unlock();
+						}
+					}));
+				}catch(RejectedExecutionException e){
+					return; // Closed
 				}
 			}
-		}else{
-			int changeParentKeysPos;
-			// Change the parent key value for the borrowed partner key value
-			for(changeParentKeysPos = 0; changeParentKeysPos < parentKeys; changeParentKeysPos++){
-				if(parent.keys[changeParentKeysPos] == borrowPartner.keys[0]){
-					parent.keys[changeParentKeysPos] = borrowPartner.keys[1];
-					break;
+		}
+		
+		/**
+		 * Move on to the leaf at addr, the one after ours. If it was read
+		 * ahead that copy is used; it's no older than ours, so it has every
+		 * key that stayed put after the ones we've handed out.
+		 */
+		private void nextLeaf(long addr) throws IOException{
+			Future<BTreeNode> f = ahead.remove(addr);
+			BTreeNode read = null;
+			if(f != null){
+				try{
+					read = f.get();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}catch(ExecutionException e){
+					// Read it ourselves
 				}
 			}
 			
-			child.keys[maxCKeys] = borrowPartner.keys[0];
-			child.children[maxCKeys] = borrowPartner.children[0];
+			if(read != null && isLeaf(read)){
+				leaf = read;
+				checkLayout();
+			}else
+				readLeaf(addr);
+			if(readahead == 0 || snapshot != null) return;
 			
-			for(int i = 0; i < maxBKeys-1; i++){ // TODO
-				borrowPartner.keys[i] = borrowPartner.keys[i+1];
-				borrowPartner.children[i] = borrowPartner.children[i+1];
+			// Keep our place among the siblings, or go get the next parent's
+			if(sibling + 1 < siblingCount && siblings[sibling + 1] == addr)
+				sibling++;
+			else if(leaf.count != 0){
+				if(ahead.size() > 2 * readahead) ahead.clear(); // Ones we went past
+				descend(leaf.keys[0]);
 			}
-			
-			//parent.keys[changeParentKeysPos - 1] = child.keys[0];
+			readAhead();
 		}
-	}
-	
-	/** Helper method to grab values from nonLeaf nodes */
-	private void borrowFromNonLeaf(BTreeNode borrowPartner, BTreeNode child, BTreeNode parent, boolean left, int borrowPos){
-		int maxCKeys = Math.abs(child.count);
-		int maxBKeys = Math.abs(borrowPartner.count);
 		
-		if(left){ // case for borrowing from the left
-			
-			for(int i = maxCKeys; i > 0; i--){
-				child.keys[i] = child.keys[i-1];
-				child.children[i] = child.children[i-1];
+		/** Copy the leaf at addr into ours */
+		private void readLeaf(long addr) throws IOException{
+			if(snapshot != null){
+				snapshot.readNode(addr, leaf);
+				return;
 			}
-			
-			child.keys[0] = parent.keys[borrowPos];
-			child.children[0] = borrowPartner.children[maxBKeys];
-			parent.keys[borrowPos] = borrowPartner.keys[maxBKeys - 1];
-		}else{ // case for the right
-			child.keys[maxCKeys] = parent.keys[borrowPos - 1];
-			child.children[maxCKeys+1] = borrowPartner.children[0];
-			parent.keys[borrowPos-1] = borrowPartner.keys[0];
-			
-			for(int i = 0; i < maxBKeys - 1; i++){
-				borrowPartner.keys[i] = borrowPartner.keys[i+1];
-				borrowPartner.children[i] = borrowPartner.children[i+1];
+			Lock l = latchFor(addr).readLock();
+			l.lock();
+			try{
+				readNode(addr, leaf);
+			}catch(RuntimeException e){
+				checkLayout(); // What we read may not be a leaf any more
+				throw e;
+			}finally{
+				l.unlock();
 			}
-			
-			borrowPartner.children[maxBKeys-1] = borrowPartner.children[maxBKeys];
+			checkLayout();
+		}
+		
+		private void push(long addr, int pos){
+			if(depth == pathAddr.length){
+				pathAddr = Arrays.copyOf(pathAddr, depth * 2);
+				pathPos = Arrays.copyOf(pathPos, depth * 2);
+			}
+			pathAddr[depth] = addr;
+			pathPos[depth] = pos;
+			depth++;
 		}
 	}
 	
 	/**
-	 * Equality search for the value k
-	 * @param k
-	 * @return if key is found, address of the row with the key is returned
-	 * (otherwise 0)
+	 * The tree as it was when snapshot() was called. Searches and cursors
+	 * on it work like the tree's own, only they read each node as it was
+	 * then and don't latch anything.
 	 */
-	public long search(int k) throws IOException{
-		return search(root, k);
-	}
-	
-	private long search(long r, int k) throws IOException{
-		BTreeNode x = new BTreeNode(r);
+	public class Snapshot implements AutoCloseable {
+		private int epoch;
+		private long root;
+		private int layout = compactions;
+		private volatile boolean closed;
 		
-		if(x.address == 0) return 0;
-		int len; // middle of keys array
+		private Snapshot(int e, long r){
+			epoch = e;
+			root = r;
+		}
 		
-		if(isLeaf(x)){
-			int i = 0;
-			len = Math.abs(x.count);
-			while(i < len){
-				if(k == x.keys[i])
-					return x.children[i];
-				i++;
+		/** Like BTree.search(), as of the snapshot */
+		public long search(long k) throws IOException{
+			try{
+				RangeCursor c = rangeCursor(k, k);
+				return c.hasNext() ? c.nextLong() : 0;
+			}catch(UncheckedIOException e){
+				throw e.getCause();
 			}
-			return 0;
 		}
-		len = x.count;
-		int pos = len;
 		
-		while((pos - 1 != -1) && (k < x.keys[pos-1]))
-			pos--;
+		/** Like BTree.rangeSearch(), as of the snapshot */
+		public LinkedList<Long> rangeSearch(long low, long high) throws IOException{
+			LinkedList<Long> list = new LinkedList<>();
+			try{
+				rangeCursor(low, high).forEachRemaining((long addr) -> list.add(addr));
+			}catch(UncheckedIOException e){
+				throw e.getCause();
+			}
+			return list;
+		}
 		
-		if(pos == -1)
-			x = new BTreeNode(x.children[0]);
-		else if(pos == len)
-			x = new BTreeNode(x.children[len]);
-		else
-			x = new BTreeNode(x.children[pos]);
+		public RangeCursor rangeCursor(long low, long high) throws IOException{
+			return rangeCursor(low, high, false);
+		}
 		
-		return search(x.address, k);
-	}
-
-	/**
-	 * PRE: low <= high
-	 * @param low -- low end of key range
-	 * @param high -- high end of key range
-	 * @return a list of row addresses for all keys in the range low to high (inclusive)
-	 * @return empty list when no keys are in the range
-	 */
-	public LinkedList<Long> rangeSearch(int low, int high) throws IOException{
-		LinkedList<Long> list = new LinkedList<>();
-		return rangeSearch(new BTreeNode(root), low, high, list);
-	}
-	
-	/** Helper method for our range search. Makes use of search() for low and high values */
-	private LinkedList<Long> rangeSearch(BTreeNode node, int low, int high, LinkedList<Long> link) throws IOException{
-		
-//		LinkedList<Long> addrs = new LinkedList<>();
-//		
-//		long min = search(r, low);
-//		long max = search(r, high);
-//		
-//		if(min == 0 || max == 0) return null; // Check if min == max?
-//		
-//		addrs.add(min);
-//		
-//		BTreeNode curr = new BTreeNode(min);
-//		BTreeNode stop = new BTreeNode(max);
-//		
-//		// This also stops before the end of the list (last child is 0)
-//		while(curr.children[order-1] != stop.children[order-1]){
-//			BTreeNode temp = new BTreeNode(curr.children[order-1]);
-//			addrs.add(curr.children[order-1]);
-//			curr = temp;
-//		}
-//		
-//		return addrs;
-		
-		if(node.address == 0) return link;
-		
-		int len;
-		if(isLeaf(node)){
-			int i = 0;
-			len = Math.abs(node.count);
-			
-			while(i < len){
-				if(high < node.keys[i])
-					break;
-				if(low <= node.keys[i])
-					link.add(node.children[i]);
-				i++;
-			}
-			
-			if(i >= len)
-				checkNext(high, new BTreeNode(node.children[node.keys.length]), link);
-			
-			return link;
+		public RangeCursor rangeCursor(long low, long high, boolean reverse) throws IOException{
+			if(closed) throw new IllegalStateException("Snapshot is closed");
+			return new RangeCursor(low, high, reverse, this);
 		}
 		
-		len = node.count;
-		int pos = len;
+		public LongStream searchAll(long k) throws IOException{
+			return rangeStream(k, k);
+		}
 		
-		while(pos - 1 != -1 && (low < node.keys[pos-1]))
-			pos--;
+		public LongStream rangeStream(long low, long high) throws IOException{
+			return stream(rangeCursor(low, high));
+		}
 		
-		if(pos-1 == -1)
-			node = new BTreeNode(node.children[0]);
-		else if(pos == len)
-			node = new BTreeNode(node.children[len]);
-		else
-			node = new BTreeNode(node.children[pos]);
+		/** Let the writer stop keeping copies for this snapshot */
+		@Override
+		public void close(){
+			writer.lock();
+			try{
+				if(closed) return;
+				closed = true;
+				snapshots.remove(epoch);
+				dropVersions();
+			}finally{
+				writer.unlock();
+			}
+		}
 		
-		return rangeSearch(node, low, high, link);
-	}
-	
-	private void checkNext(int high, BTreeNode checkNode, LinkedList<Long> link) throws IOException{
-		if(checkNode.address == 0) return;
+		/** Copy the node at addr, as it was, into spare */
+		private BTreeNode readNode(long addr, BTreeNode spare) throws IOException{
+			byte[] image = image(addr);
+			RuntimeException torn = null;
+			if(image == null){
+				try{
+					BTree.this.readNode(addr, spare);
+				}catch(RuntimeException e){
+					torn = e; // The writer was changing it, so it kept a copy
+				}
+				VarHandle.acquireFence(); // Done reading it before we look again
+				image = image(addr);
+			}
+			if(image != null) spare.read(addr, ByteBuffer.wrap(image));
+			check();
+			if(image == null && torn != null) throw torn;
+			return spare;
+		}
 		
-		int i = 0;
-		int len = Math.abs(checkNode.count);
+		/** Fill b with the block at addr as it was */
+		private void readBlock(long addr, ByteBuffer b) throws IOException{
+			byte[] image = image(addr);
+			if(image == null){
+				BTree.this.readBlock(addr, b);
+				VarHandle.acquireFence();
+				image = image(addr);
+			}
+			if(image != null){
+				b.clear();
+				b.put(image, 0, b.capacity());
+				b.clear();
+			}
+			check();
+		}
 		
-		while(i < len){
-			if(high < checkNode.keys[i]) break;
-			link.add(checkNode.children[i]);
-			i++;
+		/** The oldest copy of the block at addr kept since we were taken, null if none */
+		private byte[] image(long addr){
+			Version found = null;
+			for(Version v = versions.get(addr); v != null && v.epoch >= epoch; v = v.older)
+				found = v;
+			return found == null ? null : found.image;
 		}
 		
-		checkNext(high, new BTreeNode(checkNode.children[checkNode.keys.length]), link);
+		private void check(){
+			if(closed) throw new IllegalStateException("Snapshot is closed");
+			if(layout != compactions) throw new ConcurrentModificationException("Tree was compacted");
+		}
+	}
+	
+	/** Drop the copies of blocks no open snapshot reads any more. Call holding writer. */
+	private void dropVersions(){
+		if(snapshots.isEmpty()){
+			versions.clear();
+			return;
+		}
+		Iterator<Map.Entry<Long, Version>> it = versions.entrySet().iterator();
+		while(it.hasNext()){
+			Map.Entry<Long, Version> e = it.next();
+			Version v = needed(e.getValue());
+			if(v == null) it.remove();
+			else if(v != e.getValue()) e.setValue(v);
+		}
+	}
+	
+	/**
+	 * The part of a chain of copies that open snapshots read. A snapshot
+	 * reads the oldest copy from its epoch on, so a copy is only read by
+	 * snapshots taken after the copy older than it.
+	 */
+	private Version needed(Version v){
+		if(v == null) return null;
+		Version older = needed(v.older);
+		Integer reader = snapshots.ceiling(v.older == null ? Integer.MIN_VALUE : v.older.epoch + 1);
+		if(reader == null || reader > v.epoch) return older;
+		return older == v.older ? v : new Version(v.epoch, v.image, older);
 	}
 	
-	/** Check node to see if it's a leaf */
+	/** Check node to see if it's a leaf. Removes can leave a leaf empty; a nonleaf always has a key. */
 	private boolean isLeaf(BTreeNode node){
-		return (node.count < 0);
+		return (node.count <= 0);
 	}
 	
-	private boolean checkNode(BTreeNode node, int k) throws IOException{
+	private boolean checkNode(BTreeNode node, long k) throws IOException{
 		
 		if(node.address == 0) return false;
 		
-		for(int i = 0; i < Math.abs(node.count); i++)
-			if(node.keys[i] == k) return true;
-		return false;
+		return findKey(node, k) >= 0;
+	}
+	
+	/**
+	 * Binary search for the number of keys in the node that are <= k. In a
+	 * nonleaf that's the child to follow for k; in a leaf it's where k goes.
+	 */
+	private int childIndex(BTreeNode node, long k){
+		int i = findKey(node, k);
+		return i < 0 ? -(i + 1) : i + 1;
+	}
+	
+	/** Where k is in the node's keys, or -(where it would go) - 1, like Arrays.binarySearch() */
+	private int findKey(BTreeNode node, long k){
+		int n = Math.abs(node.count);
+		if(!linearScan)
+			return Arrays.binarySearch(node.keys, 0, n, k);
+		int i = n - 1;
+		while(i >= 0 && node.keys[i] > k)
+			i--;
+		return i >= 0 && node.keys[i] == k ? i : -(i + 2);
 	}
 	
 	/** Check node to see if we can add more keys */
 	private boolean hasRoom(BTreeNode bNode){
+		if(packed && isLeaf(bNode)){
+			if(bNode.packedCount != bNode.count){
+				bNode.packedBytes = packedSize(bNode.keys, bNode.children, -bNode.count);
+				bNode.packedCount = bNode.count;
+			}
+			return -bNode.count < bNode.keys.length && bNode.packedBytes + MAX_PACKED_ENTRY <= nodeSize;
+		}
 		return (Math.abs(bNode.count) < (order - 1));
 	}
 	
-	/** Check node to see if we have the minimum number of keys */
-	private boolean minKeys(BTreeNode node){
-		// Be sure to 
-		// Root node can have min of 1 leaf
-		if(node.address == root)
-			return node.count < 1;
-		// Other nodes have min of ceiling(order/2)-1
-		return(Math.abs(node.count) < Math.ceil(order/2.0) - 1);
+	/** Bytes a packed leaf of the first n keys and children takes */
+	private int packedSize(long[] keys, long[] children, int n){
+		int size = PACKED_HEADER;
+		for(int i = 0; i < n; i++)
+			size += packedEntrySize(keys, children, i);
+		return size;
+	}
+	
+	/** Bytes entry i of a packed leaf takes */
+	private static int packedEntrySize(long[] keys, long[] children, int i){
+		if(i == 0) return varintSize(zigzag(keys[0])) + varintSize(zigzag(children[0]));
+		return varintSize(keys[i] - keys[i-1]) + varintSize(zigzag(children[i] - children[i-1]));
+	}
+	
+	/** A new empty node, with room for as many keys as its kind can hold */
+	private BTreeNode newNode(long addr, int type){
+		int n = (packed && type == LEAF) ? packedMax : order-1;
+		return new BTreeNode(addr, type, new long[n], new long[n+1]);
+	}
+	
+	/** Append v 7 bits a byte, low bits first, with the top bit set on all but the last */
+	private static void putVarint(ByteBuffer b, long v){
+		while((v & ~0x7FL) != 0){
+			b.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		b.put((byte) v);
+	}
+	
+	private static long getVarint(ByteBuffer b){
+		long v = 0;
+		for(int shift = 0; ; shift += 7){
+			byte x = b.get();
+			v |= (long) (x & 0x7F) << shift;
+			if(x >= 0) return v;
+		}
+	}
+	
+	private static int varintSize(long v){
+		int size = 1;
+		while((v & ~0x7FL) != 0){
+			v >>>= 7;
+			size++;
+		}
+		return size;
+	}
+	
+	/** Fold the sign into the low bit so small negative numbers stay small */
+	private static long zigzag(long v){
+		return (v << 1) ^ (v >> 63);
+	}
+	
+	private static long unzigzag(long v){
+		return (v >>> 1) ^ -(v & 1);
 	}
 	
 	private boolean hasExtraKeys(BTreeNode node){
 		return Math.abs(node.count) > Math.ceil(order/2.0) - 1;
 	}
 	
-	/** Free list; potentially extend length of list. */
+	/** A block for a new node, as near the front of the file as there's one free */
 	private long getFree() throws IOException{
-		// No removal method for HW7, we can just return length for now
-		if(free == 0) return f.length();
-		long tmp = free;
-		f.seek(free);
-		free = f.readLong();
-		return tmp;
+		return getFree(firstBlock);
+	}
+	
+	/**
+	 * A block for a new node: the free one closest to near, or a new one at
+	 * the end of the file if none are free. A node put next to the one it
+	 * was split from is read along with it by range searches.
+	 */
+	private long getFree(long near) throws IOException{
+		int at = (int) ((near - firstBlock) / nodeSize);
+		int after = freeBlocks.nextSetBit(at);
+		int before = at == 0 ? -1 : freeBlocks.previousSetBit(at - 1);
+		int block = after >= 0 && (before < 0 || after - at <= at - before) ? after : before;
+		
+		// Nodes in the cache may not be in the file yet, so track the end ourselves
+		if(block < 0){
+			long tmp = end;
+			end += nodeSize;
+			if(mapped) growMap(end);
+			return tmp;
+		}
+		long addr = firstBlock + (long) block * nodeSize;
+		setFree(addr, false);
+		return addr;
 	}
 	
 	/**
@@ -905,11 +2916,85 @@ public class BTree {
 	 * @throws IOException
 	 */
 	private void addFree(long addr) throws IOException{
-		// Add to front of list
-		f.seek(addr);
-		f.writeLong(free);
-		free = addr;
-		//return addr;
+		keepVersion(addr);
+		
+		// The node is gone, so don't write it back
+		synchronized(cache){
+			cache.remove(addr);
+		}
+		
+		// Wipe its front so cursors can tell a posting page is gone
+		if(duplicates){
+			ByteBuffer link = linkBuffer.get();
+			link.putLong(0, 0);
+			writeBlock(addr, link);
+		}
+		setFree(addr, true);
+	}
+	
+	/** Mark the block at addr free or in use, adding free map pages as needed */
+	private void setFree(long addr, boolean isFree) throws IOException{
+		int block = (int) ((addr - firstBlock) / nodeSize);
+		int page = block / blocksPerPage;
+		while(freeMapPages.size() <= page){ // Only when freeing; what's in use is covered
+			long added = end;
+			end += nodeSize;
+			if(mapped) growMap(end);
+			if(freeMapPages.isEmpty()) free = added;
+			else freeMapDirty.set(freeMapPages.size() - 1); // Its link changes
+			freeMapDirty.set(freeMapPages.size());
+			freeMapPages.add(added);
+		}
+		freeBlocks.set(block, isFree);
+		freeMapDirty.set(page);
+	}
+	
+	/** Write out the free map pages that have changed */
+	private void writeFreeMap() throws IOException{
+		ByteBuffer b = nodeBuffer.get();
+		for(int p = freeMapDirty.nextSetBit(0); p >= 0; p = freeMapDirty.nextSetBit(p + 1)){
+			b.clear();
+			b.putLong(p + 1 < freeMapPages.size() ? freeMapPages.get(p + 1) : 0);
+			b.put(freeBlocks.get(p * blocksPerPage, (p + 1) * blocksPerPage).toByteArray());
+			while(b.hasRemaining())
+				b.put((byte) 0);
+			writeBlock(freeMapPages.get(p), b);
+		}
+		freeMapDirty.clear();
+	}
+	
+	/**
+	 * Read in the free map, or the free list of a file from before there
+	 * was a map. The list is turned into a map, written out on close.
+	 */
+	private void readFreeSpace(boolean list) throws IOException{
+		if(list){
+			ArrayList<Long> blocks = new ArrayList<>();
+			ByteBuffer link = linkBuffer.get();
+			for(long addr = free; addr != 0; addr = link.getLong(0)){
+				blocks.add(addr);
+				readBlock(addr, link);
+			}
+			free = 0;
+			for(long addr : blocks)
+				setFree(addr, true);
+			return;
+		}
+		
+		ByteBuffer b = nodeBuffer.get();
+		for(long page = free; page != 0; page = b.getLong(0)){
+			readBlock(page, b);
+			int first = freeMapPages.size() * blocksPerPage;
+			freeMapPages.add(page);
+			b.position(8);
+			BitSet bits = BitSet.valueOf(b);
+			for(int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1))
+				freeBlocks.set(first + i);
+		}
+		
+		// Files closed before close() grew them can end short of their last free blocks
+		if(!freeBlocks.isEmpty())
+			end = Math.max(end, firstBlock + (long) freeBlocks.length() * nodeSize);
 	}
 	
 	/**
@@ -917,15 +3002,24 @@ public class BTree {
 	 * @throws IOException
 	 */
 	public void print() throws IOException{
+		writer.lock(); // Keeps the tree still while we walk it
+		try{
+			printNodes();
+		}finally{
+			writer.unlock();
+		}
+	}
+	
+	private void printNodes() throws IOException{
         System.out.println("PRINTING B+TREE:\n");
         System.out.println("Block Size: " + blockSize + "\t(Order " + order + ")");
         System.out.println("Root: " + root + "\t\t\tFree: " + free + "\n");
         System.out.println("Address\t\t||\tCount\t||\t\tKeys\t\t\t||\t\tChildren");
         System.out.println("-----------------------------------------------------------"
         		+ "-------------------------------------------------------");
-        Stack<BTreeNode> nodes = new Stack<>();
-        nodes.push(new BTreeNode(root));
-        while(!nodes.empty()) {
+        Deque<BTreeNode> nodes = new ArrayDeque<>();
+        nodes.push(readNode(root));
+        while(!nodes.isEmpty()) {
         	BTreeNode temp = nodes.pop();
         	if(temp.address != 0) {
 
@@ -938,24 +3032,185 @@ public class BTree {
         			System.out.print(temp.children[i] + "\t");
         			
         			if(!isLeaf(temp) && temp.children[i] != 0)
-        				nodes.push(new BTreeNode(temp.children[i]));
+        				nodes.push(readNode(temp.children[i]));
         		}
         		System.out.println();
             }
         }
     }
 
+	/** What stats() found */
+	public static class Stats {
+		public int height;
+		public long[] nodes; // On each level, root first
+		public double[] fill; // Average fraction of each level's nodes in use
+		public double[] minFill; // Emptiest node on each level
+		public long keys;
+		public long postingPages; // With duplicate keys
+		public long freeBlocks;
+		public double fragmentation; // Fraction of leaf links that go back in the file
+		
+		@Override
+		public String toString(){
+			StringBuilder s = new StringBuilder(String.format("Height %d, %d keys, %d free blocks, %.1f%% of leaf links go back",
+					height, keys, freeBlocks, 100 * fragmentation));
+			if(postingPages > 0) s.append(", ").append(postingPages).append(" posting pages");
+			for(int i = 0; i < height; i++)
+				s.append(String.format("%nLevel %d: %d nodes, %.1f%% full on average, %.1f%% at least",
+						i, nodes[i], 100 * fill[i], 100 * minFill[i]));
+			return s.toString();
+		}
+	}
+	
+	/**
+	 * Size up the tree: how tall it is, how full its nodes are, how much of
+	 * the file is free, and how out of order the leaves are in the file.
+	 * Worth a compact() when the leaves are mostly empty or out of order.
+	 * It reads a snapshot, so it doesn't hold up inserts and removes, and
+	 * reads each level's nodes in parallel.
+	 */
+	public Stats stats() throws IOException{
+		Stats stats = new Stats();
+		writer.lock();
+		try{
+			stats.freeBlocks = freeBlocks.cardinality();
+		}finally{
+			writer.unlock();
+		}
+		
+		ArrayList<Long> nodes = new ArrayList<>();
+		ArrayList<Double> fill = new ArrayList<>(), minFill = new ArrayList<>();
+		long links = 0, back = 0;
+		try(Snapshot s = snapshot()){
+			long[] level = s.root == 0 ? new long[0] : new long[]{s.root};
+			ThreadLocal<BTreeNode> spares = ThreadLocal.withInitial(() -> newNode(0, LEAF));
+			while(level.length > 0){
+				long[] addrs = level;
+				double[] full = new double[addrs.length];
+				long[][] below = new long[addrs.length][]; // Children of nonleaves
+				long[] next = new long[addrs.length]; // Link of leaves
+				long[] keys = new long[addrs.length];
+				long[] pages = new long[addrs.length];
+				IntStream.range(0, addrs.length).parallel().forEach(i -> {
+					try{
+						BTreeNode node = s.readNode(addrs[i], spares.get());
+						int n = Math.abs(node.count);
+						full[i] = (double) n / (order-1);
+						if(!isLeaf(node)){
+							below[i] = Arrays.copyOf(node.children, n + 1);
+							return;
+						}
+						keys[i] = n;
+						next[i] = node.children[node.keys.length];
+						if(packed){ // Full is by bytes, not keys
+							ByteBuffer b = nodeBuffer.get();
+							node.put(b);
+							full[i] = (double) b.position() / nodeSize;
+						}
+						for(int j = 0; j < n; j++)
+							if(isPostings(node.children[j]))
+								pages[i] += countPostings(s, -node.children[j]);
+					}catch(IOException e){
+						throw new UncheckedIOException(e);
+					}
+				});
+				
+				double min = 1, sum = 0;
+				int children = 0;
+				for(int i = 0; i < addrs.length; i++){
+					min = Math.min(min, full[i]);
+					sum += full[i];
+					stats.keys += keys[i];
+					stats.postingPages += pages[i];
+					if(below[i] != null) children += below[i].length;
+					else if(next[i] != 0){
+						links++;
+						if(next[i] < addrs[i]) back++;
+					}
+				}
+				nodes.add((long) addrs.length);
+				fill.add(sum / addrs.length);
+				minFill.add(min);
+				
+				level = new long[children];
+				children = 0;
+				for(long[] c : below)
+					if(c != null){
+						System.arraycopy(c, 0, level, children, c.length);
+						children += c.length;
+					}
+			}
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+		
+		stats.height = nodes.size();
+		stats.nodes = nodes.stream().mapToLong(Long::longValue).toArray();
+		stats.fill = fill.stream().mapToDouble(Double::doubleValue).toArray();
+		stats.minFill = minFill.stream().mapToDouble(Double::doubleValue).toArray();
+		stats.fragmentation = links == 0 ? 0 : (double) back / links;
+		return stats;
+	}
+	
+	/** Pages in the posting list starting at head, as of snapshot s */
+	private long countPostings(Snapshot s, long head) throws IOException{
+		ByteBuffer b = nodeBuffer.get();
+		long pages = 0;
+		for(long page = head; page != 0; page = b.getLong(16)){
+			s.readBlock(page, b);
+			pages++;
+		}
+		return pages;
+	}
+
 	/** Close the B+tree. Tree should not be accessed after close() is called */
 	public void close() throws IOException {
 		// Before close, update root and free!
+		writer.lock();
 		try{
-			f.seek(0);
-			f.writeLong(root);
-			f.writeLong(free);
+			if(readers != null){
+				// Let reads finish; interrupting one would close the file
+				readers.shutdown();
+				try{
+					readers.awaitTermination(1, TimeUnit.MINUTES);
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+			}
+			if(log != null){
+				commit();
+				checkpoint();
+				log.close();
+				log = null;
+				new File(logName).delete();
+			}
+			synchronized(cache){
+				for(BTreeNode node : cache.values())
+					if(node.dirty) node.flush();
+				cache.clear();
+			}
+			
+			writeFreeMap();
+			writeHeader();
+			writeUnderfull();
+			if(mapped){
+				segments = null;
+				f.setLength(end); // Drop the slack the mapping added
+			}else if(f.length() < end)
+				f.setLength(end); // Blocks freed before they were written still count, or opening hands them out again
 			f.close();
 
 		}catch(Exception e){
 			e.printStackTrace();
+		}finally{
+			writer.unlock();
 		}
 	}
+	
+	/** Delete a closed tree's file, along with its log and underfull notes */
+	public static void delete(String filename){
+		new File(filename).delete();
+		new File(filename + ".log").delete();
+		new File(filename + ".underfull").delete();
+	}
 }
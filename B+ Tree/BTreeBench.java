@@ -0,0 +1,79 @@
+import java.io.*;
+import java.util.*;
+
+/*
+ * Times BTree searches across block sizes. Keys are inserted in order,
+ * then looked up in random order with the cache big enough to hold the
+ * whole tree, so what's left is the time spent inside the nodes. Batched
+ * lookups are timed with searchBatch() on runs of keys close together.
+ * With "linear", nodes are searched by walking their keys the way they
+ * were before binary search, for a baseline to compare against.
+ *
+ * Usage: java BTreeBench [keys] [lookups] [linear]
+ */
+public class BTreeBench {
+
+	static final int[] BLOCK_SIZES = {4096, 8192, 16384, 32768, 65536};
+	static final int BATCH = 500; // Keys per searchBatch()
+
+	public static void main(String[] args) throws IOException {
+		int keys = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+		boolean linear = args.length > 2 && args[2].equals("linear");
+
+		System.out.println(linear ? "Linear scan within nodes" : "Binary search within nodes");
+		System.out.println("Block\tOrder\tInsert ms\tLookups/s\tBatched/s\tRange keys/s");
+		for(int bsize : BLOCK_SIZES){
+			BTree tree = new BTree("benchBTreeFile", bsize);
+			tree.setCacheSize(256L << 20);
+			tree.linearScan = linear;
+
+			long start = System.nanoTime();
+			for(int i = 0; i < keys; i++)
+				tree.insert(2 * i, 2 * i + 1);
+			long insertMs = (System.nanoTime() - start) / 1000000;
+
+			// Half the probes hit, half miss
+			Random r = new Random(340);
+			int[] probes = new int[lookups];
+			for(int i = 0; i < lookups; i++)
+				probes[i] = r.nextInt(2 * keys);
+
+			// Warm up, then time it
+			long found = 0;
+			for(int i = 0; i < lookups / 10; i++)
+				found += tree.search(probes[i]);
+			start = System.nanoTime();
+			for(int i = 0; i < lookups; i++)
+				found += tree.search(probes[i]);
+			double lookupSecs = (System.nanoTime() - start) / 1e9;
+
+			// The same number of lookups, in batches of keys close together
+			long[] batch = new long[BATCH];
+			long[] results = new long[BATCH];
+			start = System.nanoTime();
+			for(int i = 0; i + BATCH <= lookups; i += BATCH){
+				int low = probes[i] % Math.max(1, 2 * keys - 20 * BATCH);
+				for(int j = 0; j < BATCH; j++)
+					batch[j] = low + r.nextInt(20 * BATCH);
+				tree.searchBatch(batch, results);
+				found += results[0];
+			}
+			double batchSecs = (System.nanoTime() - start) / 1e9;
+
+			start = System.nanoTime();
+			long scanned = 0;
+			for(int i = 0; i < 200; i++){
+				int low = r.nextInt(2 * keys);
+				scanned += tree.rangeSearch(low, low + 2000).size();
+			}
+			double rangeSecs = (System.nanoTime() - start) / 1e9;
+
+			System.out.printf("%d\t%d\t%d\t\t%.0f\t\t%.0f\t\t%.0f%n", bsize, tree.order, insertMs,
+					lookups / lookupSecs, lookups / batchSecs, scanned / rangeSecs);
+			if(found == 0) System.out.println("No keys found!");
+			tree.close();
+		}
+		new File("benchBTreeFile").delete();
+	}
+}
@@ -1,18 +1,85 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.stream.*;
 
 public class DBTable {
 
 	RandomAccessFile rows; //the file that stores the rows in the table
+	FileChannel channel; // Positional reads and writes of whole rows
 	long free; //head of the free list space for rows
+	// The free list, kept in memory by how many bytes each free row has room
+	// for, then lowest address first so rows are reused from the front of
+	// the file without reading the list. It's written back to the file
+	// lowest address first on close.
+	TreeMap<Integer, TreeSet<Long>> freeRows = new TreeMap<>();
+	String freeListCut; // Why opening dropped the end of a stale free list, or null
 	int numOtherFields;
 	int[] otherFieldLengths;
+	int[] fieldOffsets; // Where each other field starts in a row of chars
+	int rowSize; // Bytes a row of chars takes up in the file
+	
+	// Compact rows: fields are stored as Latin-1 or UTF-8 bytes with no
+	// padding, so a row of mostly ASCII takes about half what it did as
+	// chars, and rows are only as long as what's in them. A free row's
+	// slot size stays in the file, with the free list link after it. Tables
+	// from before them, or with fields too long for a short to reach the
+	// end of, store chars as before.
+	static final int COMPACT_ROWS = 1 << 30; // Flag kept in the number of fields
+	static final int ROW_HEADER = 8; // Key and slot size
+	static final int UTF8_FIELD = 1 << 15; // Flag kept in a field's end
+	static final int MIN_ROW = 16; // Room for the free list link
+	boolean compactRows;
+	int maxRowSize; // Most bytes a compact row could take
+	
+	// Scans read rows a batch at a time in file order, and rows less than
+	// READ_GAP bytes apart are read in one go, gap and all, up to READ_RUN
+	// bytes at a time
+	static final int READ_BATCH = 256;
+	static final int READ_GAP = 4096;
+	static final int READ_RUN = 1 << 20;
+	
+	// Clustered: inserts go in the free row nearest the row with the key
+	// before theirs, and compact() leaves every CLUSTER_GAP-th row free for
+	// them, so rows stay about in key order and scans read them straight
+	// through the file
+	static final int CLUSTERED = 1 << 29; // Flag kept in the number of fields
+	static final int CLUSTER_GAP = 10;
+	boolean clustered;
 	//add other instance variables as needed
 	BTree tree;
+	String name;
+	static final double COMPACT_FILL = 0.9; // Leaves the rebuilt B+tree room for some inserts
+	static final int REBALANCE_AFTER = 16; // Underfull leaves removes leave before the B+trees are rebalanced
+	
+	// Secondary indexes on other fields, null where a field has none. Each
+	// one keys rows by the first INDEX_CHARS characters of the field, so
+	// rows that share them are duplicates and searches check the rest.
+	static final int INDEX_CHARS = 4;
+	static final KeyCodec<byte[]> INDEX_KEYS = KeyCodec.bytes(2 * INDEX_CHARS);
+	BTree[] indexes;
+	
+	// Row cache: the fields of rows search() found, by key, least recently
+	// used first, so hot keys don't go to the B+tree or the file. It's held
+	// to about rowCacheCapacity bytes, counting the fields' chars and
+	// ROW_CACHE_OVERHEAD for each row. Off until setRowCache().
+	static final int ROW_CACHE_OVERHEAD = 64;
+	LinkedHashMap<Integer, String[]> rowCache;
+	long rowCacheBytes;
+	long rowCacheCapacity;
+	long cacheHits;
+	long cacheMisses;
 
 	private class Row {
 		private int keyField;
-		private char[][] otherFields;
+		private ByteBuffer fields; // The row as it is in the file
 		/*
 		 Each row consists of unique key and one or more character array fields.
 		 
@@ -23,31 +90,37 @@ public class DBTable {
 		 
 		 Fields are padded with null characters so a field with a length of
 		 of x characters always uses space for x characters.
+		 
+		 A row is the key, then each field's characters at two bytes each,
+		 fieldOffsets[i] bytes in. It's read and written whole, in one go.
+		 
+		 With compact rows, a row is the key, the size of its slot, then where
+		 each field ends, then the fields' bytes with no padding. A field is
+		 Latin-1, or UTF-8 if it has characters that aren't, flagged by the
+		 top bit of its end. Field i starts where field i-1 ends, so finding
+		 one is still just a lookup.
 		 */
 		
 		/**
-		 * 
+		 * Read the row at addr. A compact row's size isn't known until it's
+		 * read, so this reads as much as a row could take, still in one go.
 		 * @param addr
 		 * @throws IOException
 		 */
 		public Row(long addr) throws IOException{
-			rows.seek(addr);
-			keyField = rows.readInt();
-			
-			otherFields = new char[otherFieldLengths.length][];
-			for(int i = 0; i < otherFieldLengths.length; i++)
-				otherFields[i] = new char[otherFieldLengths[i]];
-			
-			int i = 0;
-			int j = 0;
-			while(i != otherFields.length){
-				while(j != otherFields[i].length){
-					otherFields[i][j] = rows.readChar();
-					j++;
+			fields = ByteBuffer.allocate(compactRows ? maxRowSize : rowSize);
+			while(fields.hasRemaining())
+				if(channel.read(fields, addr + fields.position()) < 0){
+					if(compactRows && fields.position() >= MIN_ROW) break; // The last row in the file
+					throw new EOFException("No row at " + addr);
 				}
-				j = 0;
-				i++;
-			}
+			keyField = fields.getInt(0);
+		}
+		
+		/** A row already read, starting at the front of b */
+		private Row(ByteBuffer b){
+			fields = b;
+			keyField = fields.getInt(0);
 		}
 		
 		/**
@@ -58,42 +131,81 @@ public class DBTable {
 		 */
 		public Row(int key, char[][] other) throws IOException{
 			keyField = key;
-			//otherFields = other;
-			otherFields = new char[otherFieldLengths.length][];
-			for(int i = 0; i < otherFieldLengths.length; i++)
-				otherFields[i] = new char[otherFieldLengths[i]];
+			if(!compactRows){
+				fields = ByteBuffer.allocate(rowSize);
+				fields.putInt(0, key);
+				for(int i = 0; i < other.length && i < otherFieldLengths.length; i++)
+					for(int j = 0; j < other[i].length && j < otherFieldLengths[i]; j++)
+						fields.putChar(fieldOffsets[i] + 2*j, other[i][j]);
+				return;
+			}
 			
-			int i = 0;
-			int j = 0;
-			while(i != otherFields.length && i != otherFieldLengths.length){
-				while(j != otherFields[i].length && j != otherFieldLengths[i]){
-					otherFields[i][j] = other[i][j]; // this is where I messed up...
-					j++;
-				}
-				j = 0;
-				i++;
+			fields = ByteBuffer.allocate(maxRowSize);
+			fields.putInt(0, key);
+			fields.position(ROW_HEADER + 2 * numOtherFields);
+			for(int i = 0; i < numOtherFields; i++){
+				int len = 0;
+				while(i < other.length && len != other[i].length && len != otherFieldLengths[i] && other[i][len] != '\0')
+					len++;
+				boolean latin1 = true;
+				for(int j = 0; j < len; j++)
+					if(other[i][j] > 0xFF) latin1 = false;
+				fields.put(new String(other[i], 0, len).getBytes(latin1 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8));
+				fields.putShort(ROW_HEADER + 2*i, (short) (fields.position() | (latin1 ? 0 : UTF8_FIELD)));
+			}
+		}
+		
+		/** Where field i's bytes end */
+		private int fieldEnd(int i){
+			return i < 0 ? ROW_HEADER + 2 * numOtherFields : fields.getShort(ROW_HEADER + 2*i) & ~UTF8_FIELD & 0xFFFF;
+		}
+		
+		/** Bytes the row takes, not counting any room left in its slot */
+		private int size(){
+			return compactRows ? Math.max(MIN_ROW, fieldEnd(numOtherFields - 1)) : rowSize;
+		}
+		
+		/** Whether compact field i is UTF-8 rather than Latin-1 */
+		private boolean utf8(int i){
+			return (fields.getShort(ROW_HEADER + 2*i) & UTF8_FIELD) != 0;
+		}
+		
+		/** Characters in field i of a row of chars, up to the first null */
+		private int charLength(int i){
+			int len = 0;
+			while(len != otherFieldLengths[i] && fields.getChar(fieldOffsets[i] + 2*len) != '\0')
+				len++;
+			return len;
+		}
+		
+		/** Field i up to its first null character, straight from the row's bytes */
+		private String field(int i){
+			if(compactRows){
+				int start = fieldEnd(i - 1);
+				return new String(fields.array(), fields.arrayOffset() + start, fieldEnd(i) - start,
+						utf8(i) ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
 			}
+			return new String(fields.array(), fields.arrayOffset() + fieldOffsets[i], 2 * charLength(i), StandardCharsets.UTF_16BE);
 		}
 		
 		/**
 		 * 
 		 * @param addr
+		 * @param slot -- bytes there's room for at addr
 		 * @throws IOException
 		 */
-		public void writeRow(long addr) throws IOException{
-			rows.seek(addr);
-			rows.writeInt(keyField);
-			
-            int i = 0; 
-            int j = 0;
-            while(i != otherFields.length) {
-                while(j != otherFields[i].length) {
-                    rows.writeChar(otherFields[i][j]);
-                    j++;
-                }
-                j = 0;
-                i++;
-            }
+		public void writeRow(long addr, int slot) throws IOException{
+			writeRow(channel, addr, slot);
+		}
+		
+		/** Write the row to another file, like the one compact() builds */
+		private void writeRow(FileChannel file, long addr, int slot) throws IOException{
+			if(compactRows) fields.putInt(4, slot);
+			ByteBuffer b = fields.duplicate();
+			b.clear();
+			b.limit(size());
+			while(b.hasRemaining())
+				file.write(b, addr + b.position());
 		}
 	}
 
@@ -111,16 +223,23 @@ public class DBTable {
 	public DBTable(String filename, int[] fL, int bsize) throws IOException {
 		File file = new File(filename);
 		rows = new RandomAccessFile(file, "rw");
-		tree = new BTree(filename + "BTreeFile", bsize); // Unique filename
+		channel = rows.getChannel();
+		tree = rebalancing(new BTree(filename + "BTreeFile", bsize)); // Unique filename
+		name = filename;
 		
 		if(file.exists()) rows.setLength(0); // Reset files
 		
 		numOtherFields = fL.length;
 		otherFieldLengths= fL;
+		layout();
+		compactRows = maxRowSize < UTF8_FIELD;
+		indexes = new BTree[numOtherFields];
+		for(int i = 0; i < numOtherFields; i++)
+			new File(indexName(i)).delete(); // Left from an old table
 		
 		// numOtherFields
 		rows.seek(0);
-		rows.writeInt(numOtherFields);
+		rows.writeInt(fieldsWord());
 		
 		// Length of other fields
 		for(int i = 0; i < numOtherFields; i++)
@@ -133,19 +252,194 @@ public class DBTable {
 	public DBTable(String filename) throws IOException{
 		File file = new File(filename);
 		rows = new RandomAccessFile(file, "rw");
-		tree = new BTree(filename + "BTreeFile");
+		channel = rows.getChannel();
+		tree = rebalancing(new BTree(filename + "BTreeFile"));
+		name = filename;
 		
 		// Update DBTable data
 		rows.seek(0);
 		numOtherFields = rows.readInt();
+		compactRows = (numOtherFields & COMPACT_ROWS) != 0;
+		clustered = (numOtherFields & CLUSTERED) != 0;
+		numOtherFields &= ~(COMPACT_ROWS | CLUSTERED);
 		otherFieldLengths = new int[numOtherFields];
 		
 		for(int i = 0; i < numOtherFields; i++){
 			int otherFields = rows.readInt();
 			otherFieldLengths[i] = otherFields;
 		}
+		layout();
 		
 		free = rows.readLong();
+		readFree();
+		
+		indexes = new BTree[numOtherFields];
+		for(int i = 0; i < numOtherFields; i++)
+			if(new File(indexName(i)).exists())
+				indexes[i] = rebalancing(new BTree(indexName(i)));
+	}
+	
+	/**
+	 * Read the free list from free into freeRows. Tables from before it was
+	 * kept in memory can have a stale one, so a link that can't be a free
+	 * row -- outside the rows, not where a row starts, one already seen, or
+	 * a row the B+tree still has -- ends the list there. That's recovery,
+	 * not an error: the rest of the list is dropped, since those rows can't
+	 * be told from ones in use, and close() writes back what was kept. The
+	 * rows dropped are only lost until compact() rewrites the table.
+	 * freeListCut says why the list was cut, for anyone checking.
+	 */
+	private void readFree() throws IOException{
+		long first = 4 * (numOtherFields + 1) + 8; // Rows start after the header
+		long length = rows.length();
+		HashSet<Long> seen = new HashSet<>();
+		for(long addr = free; addr != 0; ){
+			String bad = null;
+			int slot = rowSize;
+			if(addr < first || addr + (compactRows ? MIN_ROW : rowSize) > length)
+				bad = "outside the rows";
+			else if(!compactRows && (addr - first) % rowSize != 0)
+				bad = "not where a row starts";
+			else if(!seen.add(addr))
+				bad = "a loop";
+			else{
+				rows.seek(addr);
+				if(tree.search(rows.readInt()) == addr)
+					bad = "a row that's in use";
+				else if(compactRows){
+					slot = rows.readInt();
+					if(slot < MIN_ROW || addr + slot > length)
+						bad = "a row with a bad size";
+				}
+			}
+			if(bad != null){
+				freeListCut = "link to " + addr + " is " + bad;
+				break;
+			}
+			
+			addFree(addr, slot);
+			rows.seek(addr + freeLink());
+			addr = rows.readLong();
+		}
+	}
+	
+	/** Have removes keep the B+tree t from staying underfull */
+	private static BTree rebalancing(BTree t){
+		t.setRebalanceAfter(REBALANCE_AFTER);
+		return t;
+	}
+	
+	/** Work out the size of a row and where the fields go in it from otherFieldLengths */
+	private void layout(){
+		fieldOffsets = new int[numOtherFields];
+		rowSize = 4;
+		maxRowSize = ROW_HEADER + 2 * numOtherFields;
+		for(int i = 0; i < numOtherFields; i++){
+			fieldOffsets[i] = rowSize;
+			rowSize += 2 * otherFieldLengths[i];
+			maxRowSize += 3 * otherFieldLengths[i]; // UTF-8 takes up to 3 bytes a char
+		}
+		maxRowSize = Math.max(maxRowSize, MIN_ROW);
+	}
+	
+	/**
+	 * Keep the rows search() finds in memory, up to about bytes of them.
+	 * Rows go when they're removed, and the least recently used go first
+	 * when it's full. Inserts can't change a cached row, since its key is
+	 * taken.
+	 * @param bytes -- 0 turns it off, which is how a table starts
+	 */
+	public void setRowCache(long bytes){
+		rowCacheCapacity = Math.max(bytes, 0);
+		if(rowCacheCapacity == 0){
+			rowCache = null;
+			rowCacheBytes = 0;
+			return;
+		}
+		if(rowCache == null)
+			rowCache = new LinkedHashMap<>(16, 0.75f, true); // Access order for LRU
+		evictRows();
+	}
+	
+	/** Number of search() calls the row cache had the row for */
+	public long cacheHits(){
+		return cacheHits;
+	}
+	
+	/** Number of search() calls that went to the file with the row cache on */
+	public long cacheMisses(){
+		return cacheMisses;
+	}
+	
+	/** Bytes a row's fields count for in the row cache */
+	private static long cachedBytes(String[] fields){
+		long bytes = ROW_CACHE_OVERHEAD;
+		for(String field : fields)
+			bytes += 2 * field.length();
+		return bytes;
+	}
+	
+	/** Drop least recently used rows until the row cache is back in bounds */
+	private void evictRows(){
+		Iterator<String[]> lru = rowCache.values().iterator();
+		while(rowCacheBytes > rowCacheCapacity && lru.hasNext()){
+			rowCacheBytes -= cachedBytes(lru.next());
+			lru.remove();
+		}
+	}
+	
+	/** The number of other fields with the flags for how rows are stored */
+	private int fieldsWord(){
+		return numOtherFields | (compactRows ? COMPACT_ROWS : 0) | (clustered ? CLUSTERED : 0);
+	}
+	
+	/**
+	 * Keep rows about in key order: inserts go in the free row nearest the
+	 * row with the key before theirs, which costs them a B+tree search, and
+	 * compact() leaves room between rows for them. Stays set when the table
+	 * is closed.
+	 * @param on -- false to reuse free rows from the front of the file,
+	 * which is how a table starts
+	 */
+	public void setClustered(boolean on){
+		clustered = on;
+	}
+	
+	private String indexName(int field){
+		return name + "Index" + field;
+	}
+	
+	/**
+	 * Add a secondary index on one of the other fields, so searchField() and
+	 * rangeSearchField() on it don't have to read every row. Rows already in
+	 * the table are added to it. Does nothing if the field has one.
+	 * @param field -- which other field, from 0
+	 */
+	public void addIndex(int field) throws IOException {
+		if(indexes[field] != null) return;
+		BTree index = rebalancing(new BTree(indexName(field), tree.blockSize, INDEX_KEYS, false, true));
+		
+		PrimitiveIterator.OfLong all = tree.rangeCursor(Long.MIN_VALUE, Long.MAX_VALUE);
+		while(all.hasNext()){
+			long addr = all.nextLong();
+			index.insert(indexKey(new Row(addr), field), addr);
+		}
+		indexes[field] = index;
+	}
+	
+	/** The index key for a value: its first INDEX_CHARS characters, two bytes each */
+	private long indexKey(char[] value){
+		byte[] b = new byte[2 * INDEX_CHARS];
+		for(int i = 0; i < INDEX_CHARS && i < value.length; i++){
+			b[2*i] = (byte) (value[i] >> 8);
+			b[2*i+1] = (byte) value[i];
+		}
+		return INDEX_KEYS.encode(b);
+	}
+	
+	/** The index key for a row's field */
+	private long indexKey(Row row, int field){
+		return indexKey(row.field(field).toCharArray());
 	}
 
 	/**
@@ -165,13 +459,24 @@ public class DBTable {
 		
 		boolean added = false;
 		long addRow;
+		Row insertedRow = new Row(key, fields);
+		int size = insertedRow.size();
 		
-		if(free != 0) addRow = free;
+		long near = 0;
+		if(clustered){
+			PrimitiveIterator.OfLong before = tree.rangeCursor(Integer.MIN_VALUE, key, true);
+			if(before.hasNext()) near = before.nextLong();
+		}
+		Map.Entry<Integer, Long> slot = fitFree(size, near);
+		if(slot != null) addRow = slot.getValue();
 		else addRow = rows.length();
 		
 		if(tree.insert(key, addRow)){
-			Row insertedRow = new Row(key, fields);
-			insertedRow.writeRow(getFree());
+			if(slot != null) takeFree(slot);
+			insertedRow.writeRow(addRow, slot == null ? size : slot.getKey());
+			for(int i = 0; i < numOtherFields; i++)
+				if(indexes[i] != null)
+					indexes[i].insert(indexKey(insertedRow, i), addRow);
 			added = true;
 		}
 		
@@ -194,7 +499,24 @@ public class DBTable {
 		if(removeAddr == 0) // not in table
 			return false;
 		
-		addFree(removeAddr); // found in table, free up address
+		if(rowCache != null){
+			String[] cached = rowCache.remove(key);
+			if(cached != null) rowCacheBytes -= cachedBytes(cached);
+		}
+		
+		Row removedRow = null;
+		for(int i = 0; i < numOtherFields; i++)
+			if(indexes[i] != null){
+				if(removedRow == null) removedRow = new Row(removeAddr);
+				indexes[i].remove(indexKey(removedRow, i), removeAddr);
+			}
+		
+		int slot = rowSize;
+		if(compactRows){
+			if(removedRow == null) removedRow = new Row(removeAddr);
+			slot = removedRow.fields.getInt(4);
+		}
+		addFree(removeAddr, slot); // found in table, free up address
 		return true;
 	}
 
@@ -208,25 +530,30 @@ public class DBTable {
 	 */
 	public LinkedList<String> search(int key) throws IOException{
 		
+		if(rowCache != null){
+			String[] cached = rowCache.get(key);
+			if(cached != null){
+				cacheHits++;
+				return new LinkedList<>(Arrays.asList(cached));
+			}
+			cacheMisses++;
+		}
+		
 		long addr = tree.search(key);
 		LinkedList<String> rowContent = new LinkedList<>();
 		
 		if(addr == 0)
 			return rowContent;
 		
-		StringBuilder tempString = new StringBuilder();
 		Row tempRow = new Row(addr);
-		int i = 0;
-		int j = 0;
-		while(i != otherFieldLengths.length){
-			while(j != tempRow.otherFields[i].length && tempRow.otherFields[i][j] != '\0'){
-				tempString.append(tempRow.otherFields[i][j]);
-				j++;
-			}
-			rowContent.add(tempString.toString());
-			tempString.setLength(0);
-			j = 0;
-			i++;
+		for(int i = 0; i < numOtherFields; i++)
+			rowContent.add(tempRow.field(i));
+		
+		if(rowCache != null){
+			String[] fields = rowContent.toArray(new String[0]);
+			rowCache.put(key, fields);
+			rowCacheBytes += cachedBytes(fields);
+			evictRows();
 		}
 		return rowContent;
 	}
@@ -246,51 +573,389 @@ public class DBTable {
 	 */
 	public LinkedList<LinkedList<String>> rangeSearch(int low, int high) throws IOException {
 		
-		LinkedList<Long> addresses = tree.rangeSearch(low, high);
+		LinkedList<LinkedList<String>> contents = new LinkedList<>();
+		try{
+			rangeCursor(low, high).forEachRemaining(view -> contents.add(rowContent(view.row)));
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+		return contents;
+	}
+	
+	/**
+	 * Range search that hands back the rows one at a time instead of building
+	 * a list, so it runs in the same memory however wide the range is. Rows
+	 * are read a batch at a time like in rangeSearch(), and each one is shown
+	 * through the same RowView, which moves on to the next row on next().
+	 * Copy out whatever's needed from it before then.
+	 * 
+	 * PRE: low <= high
+	 * 
+	 * @param low -- minimum key value
+	 * @param high -- maximum key value
+	 * @return cursor over the rows, by increasing key
+	 * @throws IOException
+	 */
+	public RowCursor rangeCursor(int low, int high) throws IOException {
+		return new RowCursor(tree.rangeCursor(low, high));
+	}
+	
+	/** The rows for keys low to high as a stream, read lazily like rangeCursor() */
+	public Stream<RowView> rangeStream(int low, int high) throws IOException {
+		Spliterator<RowView> s = Spliterators.spliteratorUnknownSize(rangeCursor(low, high),
+				Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(s, false);
+	}
+	
+	/**
+	 * Every row whose field is value, found with the field's index if it has
+	 * one. Rows come back like in rangeSearch(), with the key first.
+	 * 
+	 * @param field -- which other field, from 0
+	 * @param value -- the field's value, without null characters
+	 * @return list of the fields of each row that matches
+	 * @throws IOException
+	 */
+	public LinkedList<LinkedList<String>> searchField(int field, String value) throws IOException {
+		return rangeSearchField(field, value, value);
+	}
+	
+	/**
+	 * Every row whose field is from low to high (inclusive). Uses the
+	 * field's index if it has one, else reads every row.
+	 * 
+	 * The rows aren't sorted by the field. Without an index they come in
+	 * key order. With one they come in index order, which only goes by the
+	 * first INDEX_CHARS characters; rows that share those come in no
+	 * particular order.
+	 * 
+	 * PRE: low <= high
+	 * 
+	 * @param field -- which other field, from 0
+	 * @param low -- minimum field value
+	 * @param high -- maximum field value
+	 * @return list of the fields of each row in the range
+	 * @throws IOException
+	 */
+	public LinkedList<LinkedList<String>> rangeSearchField(int field, String low, String high) throws IOException {
+		PrimitiveIterator.OfLong addresses;
+		if(indexes[field] != null)
+			addresses = indexes[field].rangeCursor(indexKey(low.toCharArray()), indexKey(high.toCharArray()));
+		else
+			addresses = tree.rangeCursor(Long.MIN_VALUE, Long.MAX_VALUE);
 		
+		// The index only goes by the first few characters, so check the rest
 		LinkedList<LinkedList<String>> contents = new LinkedList<>();
+		try{
+			new RowCursor(addresses).forEachRemaining(view -> {
+				CharSequence value = view.field(field);
+				if(CharSequence.compare(value, low) >= 0 && CharSequence.compare(value, high) <= 0)
+					contents.add(rowContent(view.row));
+			});
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+		return contents;
+	}
+	
+	/** The key and other fields of a row, without null characters */
+	private LinkedList<String> rowContent(Row row){
+		LinkedList<String> rowContent = new LinkedList<>();
+		rowContent.add(Integer.toString(row.keyField));
+		for(int i = 0; i < numOtherFields; i++)
+			rowContent.add(row.field(i));
+		return rowContent;
+	}
+	
+	/**
+	 * One row of a RowCursor, looked at in place: the fields are read
+	 * straight from the row's bytes, without making Strings of them. The
+	 * CharSequences field() hands back are reused too, one per field, so
+	 * they change when the cursor moves on.
+	 */
+	public class RowView {
+		private Row row;
+		private CharBuffer[] chars = new CharBuffer[numOtherFields];
+		private CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
 		
-		if(addresses.size() == 0)
-			return contents;
+		private RowView(){
+		}
 		
-		StringBuilder tempString = new StringBuilder();
+		public int key(){
+			return row.keyField;
+		}
 		
-		while(addresses.size() != 0){
-			LinkedList<String> rowContent = new LinkedList<>();
-			Row tempRow = new Row(addresses.remove());
-			rowContent.add(Integer.toString(tempRow.keyField));
-			
-			int i = 0;
-			int j = 0;
-			
-			while(i != tempRow.otherFields.length){
-				while(j != tempRow.otherFields[i].length && tempRow.otherFields[i][j] != '\0'){
-					tempString.append(tempRow.otherFields[i][j]);
-					j++;
+		/** How many other fields a row has */
+		public int fieldCount(){
+			return numOtherFields;
+		}
+		
+		/**
+		 * Other field i, from 0, without null characters. Good until the
+		 * cursor moves on; toString() it to keep it.
+		 */
+		public CharSequence field(int i){
+			CharBuffer c = chars[i];
+			if(c == null)
+				c = chars[i] = CharBuffer.allocate(otherFieldLengths[i]);
+			c.clear();
+			if(!compactRows){
+				for(int j = 0, len = row.charLength(i); j < len; j++)
+					c.put(row.fields.getChar(fieldOffsets[i] + 2*j));
+			}else if(!row.utf8(i)){
+				for(int j = row.fieldEnd(i - 1); j < row.fieldEnd(i); j++)
+					c.put((char) (row.fields.get(j) & 0xFF));
+			}else{
+				utf8.reset();
+				utf8.decode(fieldBytes(i), c, true);
+				utf8.flush(c);
+			}
+			c.flip();
+			return c;
+		}
+		
+		/**
+		 * Other field i's bytes as they are in the file, without padding, in
+		 * fieldCharset(i). Read-only, and good until the cursor moves on.
+		 */
+		public ByteBuffer fieldBytes(int i){
+			ByteBuffer b = row.fields.asReadOnlyBuffer();
+			b.clear();
+			if(compactRows){
+				b.limit(row.fieldEnd(i));
+				b.position(row.fieldEnd(i - 1));
+			}else{
+				b.limit(fieldOffsets[i] + 2 * row.charLength(i));
+				b.position(fieldOffsets[i]);
+			}
+			return b.slice();
+		}
+		
+		/** How fieldBytes(i) is encoded */
+		public Charset fieldCharset(int i){
+			if(!compactRows)
+				return StandardCharsets.UTF_16BE;
+			return row.utf8(i) ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1;
+		}
+	}
+	
+	/**
+	 * Reads the rows at the addresses another cursor hands out, a batch at a
+	 * time in file order, and hands them back in the order of the addresses.
+	 * Only one batch is held at once. next() always returns the same
+	 * RowView, moved on to the next row.
+	 * 
+	 * Read errors are thrown as UncheckedIOException.
+	 */
+	public class RowCursor implements Iterator<RowView> {
+		private PrimitiveIterator.OfLong addresses;
+		private long[] batch = new long[READ_BATCH];
+		private Row[] rows = new Row[0];
+		private int next; // Index in rows of the next row to hand out
+		private RowView view = new RowView();
+		
+		private RowCursor(PrimitiveIterator.OfLong addrs){
+			addresses = addrs;
+		}
+		
+		@Override
+		public boolean hasNext(){
+			return next < rows.length || addresses.hasNext();
+		}
+		
+		@Override
+		public RowView next(){
+			if(next == rows.length){
+				int n = 0;
+				while(n != batch.length && addresses.hasNext())
+					batch[n++] = addresses.nextLong();
+				if(n == 0) throw new NoSuchElementException();
+				try{
+					rows = readRows(batch, n);
+				}catch(IOException e){
+					throw new UncheckedIOException(e);
 				}
-				rowContent.add(tempString.toString());
-				tempString.setLength(0);
-				j = 0;
-				i++;
+				next = 0;
 			}
-			contents.add(rowContent);
+			view.row = rows[next];
+			rows[next++] = null; // Done with it once the view moves on
+			return view;
 		}
-		return contents;
 	}
 	
-	private void addFree(long addr) throws IOException{
-		rows.seek(addr);
-		rows.writeLong(free);
-		free = addr;
+	/**
+	 * @param addr -- where the free row is
+	 * @param slot -- bytes it has room for
+	 */
+	private void addFree(long addr, int slot) throws IOException{
+		freeRows.computeIfAbsent(slot, s -> new TreeSet<>()).add(addr);
 	}
 	
-	private long getFree() throws IOException{
-		if(free == 0) return rows.length();
+	/**
+	 * The free row to put a row of size bytes in: of the ones with the least
+	 * room that's enough, the lowest address, or if clustered, the one
+	 * nearest near of all that have room.
+	 * @return its room and address, null if none have room
+	 */
+	private Map.Entry<Integer, Long> fitFree(int size, long near){
+		if(!clustered){
+			Map.Entry<Integer, TreeSet<Long>> fit = freeRows.ceilingEntry(size);
+			return fit == null ? null : new AbstractMap.SimpleEntry<>(fit.getKey(), fit.getValue().first());
+		}
 		
-		long curr = free;
-		rows.seek(free);
-		free = rows.readLong();
-		return curr;
+		Map.Entry<Integer, Long> best = null;
+		long bestDistance = Long.MAX_VALUE;
+		for(Map.Entry<Integer, TreeSet<Long>> same : freeRows.tailMap(size, true).entrySet())
+			for(Long addr : new Long[]{same.getValue().floor(near), same.getValue().ceiling(near)})
+				if(addr != null && Math.abs(addr - near) < bestDistance){
+					bestDistance = Math.abs(addr - near);
+					best = new AbstractMap.SimpleEntry<>(same.getKey(), addr);
+				}
+		return best;
+	}
+	
+	/** Take a row from fitFree() off the free list */
+	private void takeFree(Map.Entry<Integer, Long> slot){
+		TreeSet<Long> same = freeRows.get(slot.getKey());
+		same.remove(slot.getValue());
+		if(same.isEmpty()) freeRows.remove(slot.getKey());
+	}
+	
+	/**
+	 * Read the rows at the first n addresses in addrs, in file order and in
+	 * as few reads as it takes: rows close together are read in one go,
+	 * along with whatever's between them.
+	 * @return the rows, in the same order as their addresses
+	 */
+	private Row[] readRows(long[] addrs, int n) throws IOException{
+		// Sort address and index together; n is never more than READ_BATCH
+		long[] order = new long[n];
+		for(int i = 0; i < n; i++)
+			order[i] = addrs[i] * READ_BATCH + i;
+		Arrays.sort(order);
+		
+		int most = compactRows ? maxRowSize : rowSize; // Bytes a row could take
+		long length = channel.size();
+		Row[] found = new Row[n];
+		for(int i = 0; i < n; ){
+			long start = order[i] / READ_BATCH, end = start;
+			int j = i + 1;
+			for(; j < n; j++){
+				long next = order[j] / READ_BATCH;
+				if(next - end > most + READ_GAP || next + most - start > READ_RUN)
+					break;
+				end = next;
+			}
+			
+			ByteBuffer run = ByteBuffer.allocate((int) (Math.min(end + most, length) - start));
+			while(run.hasRemaining())
+				if(channel.read(run, start + run.position()) < 0)
+					throw new EOFException("No row at " + (start + run.position()));
+			for(int k = i; k < j; k++){
+				int at = (int) (order[k] / READ_BATCH - start);
+				found[(int) (order[k] % READ_BATCH)] = new Row(j == i + 1 ? run
+						: ByteBuffer.wrap(run.array(), at, Math.min(most, run.capacity() - at)).slice());
+			}
+			i = j;
+		}
+		return found;
+	}
+	
+	/** Where a free row keeps the address of the next one */
+	private int freeLink(){
+		return compactRows ? ROW_HEADER : 0;
+	}
+	
+	/** Link the free rows up in order and point free at the first */
+	private void writeFree() throws IOException{
+		TreeSet<Long> all = new TreeSet<>();
+		for(TreeSet<Long> same : freeRows.values())
+			all.addAll(same);
+		free = 0;
+		for(long addr : all.descendingSet()){
+			rows.seek(addr + freeLink());
+			rows.writeLong(free);
+			free = addr;
+		}
+	}
+	
+	/**
+	 * Rewrite the table with the rows in key order and no free space left
+	 * between them, and rebuild the B+tree and indexes to match. Range
+	 * searches then read the rows straight through the file. If it's
+	 * clustered, every CLUSTER_GAP-th row is left free, as big as the row
+	 * before it, for inserts to go in.
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		String tmp = name + ".compact";
+		new File(tmp + "BTreeFile").delete();
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		out.setLength(0);
+		
+		// Same header, with nothing free
+		long addr = (numOtherFields+1)*4;
+		out.writeInt(fieldsWord());
+		for(int i = 0; i < numOtherFields; i++)
+			out.writeInt(otherFieldLengths[i]);
+		out.writeLong(0);
+		addr += 8;
+		
+		// Keys come out in order, so the new tree can be bulk loaded
+		BTree newTree = new BTree(tmp + "BTreeFile", tree.blockSize);
+		BTree.BulkLoader load = newTree.bulkLoad(COMPACT_FILL);
+		PrimitiveIterator.OfLong all = tree.rangeCursor(Long.MIN_VALUE, Long.MAX_VALUE);
+		long[] batch = new long[READ_BATCH];
+		ArrayList<long[]> gaps = new ArrayList<>(); // Address and size of each row left free
+		int copied = 0;
+		int last = 0; // Size of the row before
+		while(all.hasNext()){
+			int n = 0;
+			while(n != batch.length && all.hasNext())
+				batch[n++] = all.nextLong();
+			for(Row row : readRows(batch, n)){
+				if(clustered && copied != 0 && copied % (CLUSTER_GAP - 1) == 0){
+					if(compactRows){ // A free row's size stays in the file
+						ByteBuffer slot = ByteBuffer.allocate(ROW_HEADER).putInt(4, last);
+						while(slot.hasRemaining())
+							out.getChannel().write(slot, addr + slot.position());
+					}
+					gaps.add(new long[]{addr, last});
+					addr += last;
+				}
+				row.writeRow(out.getChannel(), addr, row.size());
+				load.add(row.keyField, addr);
+				last = row.size();
+				addr += last;
+				copied++;
+			}
+		}
+		load.finish();
+		
+		tree.close();
+		newTree.close();
+		rows.close();
+		out.close();
+		BTree.delete(name + "BTreeFile"); // And its notes, which are for the old layout
+		Files.move(Paths.get(tmp), Paths.get(name), StandardCopyOption.REPLACE_EXISTING);
+		Files.move(Paths.get(tmp + "BTreeFile"), Paths.get(name + "BTreeFile"), StandardCopyOption.REPLACE_EXISTING);
+		rows = new RandomAccessFile(name, "rw");
+		channel = rows.getChannel();
+		tree = rebalancing(new BTree(name + "BTreeFile"));
+		free = 0;
+		freeRows.clear();
+		for(long[] gap : gaps)
+			addFree(gap[0], (int) gap[1]);
+		
+		// Every row moved, so the indexes start over
+		for(int i = 0; i < numOtherFields; i++)
+			if(indexes[i] != null){
+				indexes[i].close();
+				indexes[i] = null;
+				addIndex(i);
+			}
 	}
 	
 	/**
@@ -309,7 +974,7 @@ public class DBTable {
         System.out.println("-----------------");
         System.out.println("-----------------");
         System.out.println("DBTable");
-        System.out.println("Current free: " + free);
+        System.out.println("Current free: " + freeRows.values().stream().mapToLong(TreeSet::first).min().orElse(0));
         System.out.println("Number of Otherfields: " + numOtherFields);
         for(int temp: otherFieldLengths) {
             System.out.println("Other field: " + temp);
@@ -319,6 +984,11 @@ public class DBTable {
 	/** Close the DBTable. The table should not be used after it's closed. */
 	public void close() throws IOException {
 		tree.close();
+		for(BTree index : indexes)
+			if(index != null) index.close();
+		writeFree();
+		rows.seek(0);
+		rows.writeInt(fieldsWord()); // Clustered may have changed
 		int pos = (numOtherFields+1)*4;
 		rows.seek(pos);
 		rows.writeLong(free);
@@ -0,0 +1,136 @@
+/**
+ * Turns keys into the longs a BTree orders its keys by. For any keys a and
+ * b, a < b has to mean encode(a) < encode(b), so the tree can compare keys
+ * as they're stored without decoding them.
+ *
+ * Keys are at most 8 bytes, since that's all a long holds. That goes for
+ * bytes() strings and for composite() fields added together; asking for
+ * more throws IllegalArgumentException when the codec is made.
+ *
+ * Use it on the way in and out:
+ *   tree.insert(codec.encode(key), addr);
+ *   K key = codec.decode(cursor.key());
+ */
+public interface KeyCodec<K> {
+
+	/** Bytes each key takes in a node: 4 if every key fits in an int, 8 if not */
+	int width();
+
+	long encode(K key);
+
+	K decode(long key);
+
+	/** Plain int keys, stored the way BTree always has */
+	KeyCodec<Integer> INT = new KeyCodec<Integer>(){
+		public int width(){ return 4; }
+		public long encode(Integer key){ return key; }
+		public Integer decode(long key){ return (int) key; }
+	};
+
+	/** 64 bit keys, like ids that have outgrown an int */
+	KeyCodec<Long> LONG = new KeyCodec<Long>(){
+		public int width(){ return 8; }
+		public long encode(Long key){ return key; }
+		public Long decode(long key){ return key; }
+	};
+
+	/**
+	 * Byte strings of a fixed length of at most 8, ordered byte by byte with
+	 * bytes as unsigned values (the way memcmp orders them). Shorter strings
+	 * are padded with zeros. Longer ones can't be ordered in 8 bytes, so
+	 * a length over 8 throws IllegalArgumentException.
+	 */
+	static KeyCodec<byte[]> bytes(int length){
+		if(length < 1 || length > 8)
+			throw new IllegalArgumentException("Byte string keys take 1 to 8 bytes, not " + length);
+		int[] widths = new int[length];
+		java.util.Arrays.fill(widths, 1);
+		return new Fields<>(widths, true);
+	}
+
+	/**
+	 * Keys made of several signed fields, ordered by the first field, then
+	 * the second, and so on. Fields go in and come out as a long[].
+	 * @param widths -- bytes each field takes, adding up to at most 8, or
+	 * IllegalArgumentException is thrown
+	 */
+	static KeyCodec<long[]> composite(int... widths){
+		return new Fields<>(widths.clone(), false);
+	}
+
+	/**
+	 * Packs fields one after another, most significant first, with each one
+	 * offset so it orders as unsigned. Then the whole thing is offset back
+	 * so it orders as a signed int or long.
+	 */
+	class Fields<K> implements KeyCodec<K> {
+		private int[] widths;
+		private boolean unsigned; // Fields are bytes of a byte string
+		private int bits; // Of all the fields
+		private int width;
+
+		private Fields(int[] w, boolean bytes){
+			widths = w;
+			unsigned = bytes;
+			for(int x : w){
+				if(x < 1) throw new IllegalArgumentException("Fields take at least one byte");
+				bits += 8 * x;
+			}
+			if(bits == 0 || bits > 64)
+				throw new IllegalArgumentException("Composite keys take 1 to 8 bytes in all, not " + bits / 8);
+			width = bits <= 32 ? 4 : 8;
+		}
+
+		public int width(){
+			return width;
+		}
+
+		public long encode(K key){
+			int n = unsigned ? Math.min(((byte[]) key).length, widths.length) : widths.length;
+			if(!unsigned && ((long[]) key).length != n)
+				throw new IllegalArgumentException("Expected " + n + " fields");
+
+			long v = 0;
+			for(int i = 0; i < widths.length; i++){
+				int size = 8 * widths[i];
+				long field;
+				if(unsigned)
+					field = i < n ? ((byte[]) key)[i] & 0xFF : 0;
+				else{
+					long x = ((long[]) key)[i];
+					if(size < 64 && (x < -(1L << (size-1)) || x >= 1L << (size-1)))
+						throw new IllegalArgumentException(x + " doesn't fit in " + widths[i] + " bytes");
+					field = x ^ (1L << (size-1)); // Offset so it orders as unsigned
+					if(size < 64) field &= (1L << size) - 1;
+				}
+				v = size == 64 ? field : (v << size) | field;
+			}
+
+			// Line up with the top of the int or long and flip the sign bit
+			int shift = 8 * width - bits;
+			v <<= shift;
+			return width == 4 ? (int) (v ^ 0x80000000L) : v ^ Long.MIN_VALUE;
+		}
+
+		@SuppressWarnings("unchecked")
+		public K decode(long key){
+			long v = width == 4 ? (key ^ 0x80000000L) & 0xFFFFFFFFL : key ^ Long.MIN_VALUE;
+			v >>>= 8 * width - bits;
+
+			byte[] b = unsigned ? new byte[widths.length] : null;
+			long[] fields = unsigned ? null : new long[widths.length];
+			for(int i = widths.length - 1; i >= 0; i--){
+				int size = 8 * widths[i];
+				long field = size == 64 ? v : v & ((1L << size) - 1);
+				v = size == 64 ? 0 : v >>> size;
+				if(unsigned)
+					b[i] = (byte) field;
+				else{
+					field ^= 1L << (size-1);
+					fields[i] = size == 64 ? field : (field << (64 - size)) >> (64 - size); // Sign extend
+				}
+			}
+			return (K) (unsigned ? b : fields);
+		}
+	}
+}
@@ -0,0 +1,463 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.stream.*;
+
+/**
+ * An index split by key range across several BTree files, each one a shard.
+ * Shard i holds the keys from bounds[i] up to (not including) bounds[i+1],
+ * so inserts, searches and removes go to one shard, and a range scan goes
+ * through the shards it covers in order. Shards can be on different disks
+ * (through links) and are worked on in parallel by searchBatch() and
+ * compact(). split() splits a shard in two while it's in use.
+ *
+ * The shards are listed in the file named when the index is made: how many
+ * there are, the number to give the next shard file, then each shard's low
+ * key and file number. Shard files are that name with ".number" on the end.
+ */
+public class ShardedBTree {
+
+	String name;
+	long[] bounds; // Lowest key of each shard; bounds[0] is Long.MIN_VALUE
+	int[] files; // Number of each shard's file
+	BTree[] shards;
+	int nextFile;
+	static final double SPLIT_FILL = 0.9; // Leaves the split shards room for inserts
+
+	/*
+	 * Any number of threads can use the index at once; each call holds the
+	 * read lock while it's in a shard, and the shards handle their own
+	 * concurrency. The write lock is only held to swap shards in and out.
+	 * While a shard is being split, what's changed in it is also kept in
+	 * changes, to be done again on the new shards before they go in.
+	 */
+	ReentrantReadWriteLock table = new ReentrantReadWriteLock();
+	volatile int splits; // Cursors from before a split can't go on
+	int splitting = -1; // Shard being split
+	ArrayList<long[]> changes; // What's happened to it since: op, key, addr
+	static final long INSERT = 0;
+	static final long REMOVE_ROW = 1;
+	static final long REMOVE_KEY = 2;
+
+	/**
+	 * Makes a new sharded index of int keys
+	 * @param filename -- the list of shards; shards go in filename.0, filename.1 and so on
+	 * @param bsize -- block size of every shard
+	 * @param starts -- the lowest key of every shard but the first, in order
+	 */
+	public ShardedBTree(String filename, int bsize, long... starts) throws IOException {
+		this(filename, bsize, KeyCodec.INT, false, false, starts);
+	}
+
+	/**
+	 * Makes a new sharded index. The rest is as for the BTree constructor.
+	 * @param starts -- the lowest key of every shard but the first, in order
+	 */
+	public ShardedBTree(String filename, int bsize, KeyCodec<?> keys, boolean pack, boolean dups, long... starts) throws IOException {
+		for(int i = 0; i < starts.length; i++)
+			if(starts[i] == Long.MIN_VALUE || (i > 0 && starts[i] <= starts[i-1]))
+				throw new IllegalArgumentException("Shard starts have to go up");
+
+		name = filename;
+		bounds = new long[starts.length + 1];
+		bounds[0] = Long.MIN_VALUE;
+		System.arraycopy(starts, 0, bounds, 1, starts.length);
+		files = new int[bounds.length];
+		shards = new BTree[bounds.length];
+		for(int i = 0; i < shards.length; i++){
+			files[i] = nextFile++;
+			shards[i] = new BTree(shardName(files[i]), bsize, keys, pack, dups);
+		}
+		writeShards();
+	}
+
+	/** Open an existing sharded index */
+	public ShardedBTree(String filename) throws IOException {
+		name = filename;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))){
+			int n = in.readInt();
+			nextFile = in.readInt();
+			bounds = new long[n];
+			files = new int[n];
+			shards = new BTree[n];
+			for(int i = 0; i < n; i++){
+				bounds[i] = in.readLong();
+				files[i] = in.readInt();
+				shards[i] = new BTree(shardName(files[i]));
+			}
+		}
+	}
+
+	private String shardName(int file){
+		return name + "." + file;
+	}
+
+	/** Write out the list of shards, all at once so a crash leaves the old list or the new one */
+	private void writeShards() throws IOException {
+		File tmp = new File(name + ".new");
+		try(FileOutputStream file = new FileOutputStream(tmp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))){
+			out.writeInt(bounds.length);
+			out.writeInt(nextFile);
+			for(int i = 0; i < bounds.length; i++){
+				out.writeLong(bounds[i]);
+				out.writeInt(files[i]);
+			}
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(tmp.toPath(), Paths.get(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Index of the shard that holds key. Call holding the table lock. */
+	private int shardFor(long key){
+		int i = Arrays.binarySearch(bounds, key);
+		return i >= 0 ? i : -(i + 1) - 1;
+	}
+
+	/** Highest key shard i holds */
+	private long upper(int i){
+		return i + 1 < bounds.length ? bounds[i+1] - 1 : Long.MAX_VALUE;
+	}
+
+	/** Number of shards */
+	public int shardCount(){
+		table.readLock().lock();
+		try{
+			return shards.length;
+		}finally{
+			table.readLock().unlock();
+		}
+	}
+
+	/** The lowest key of each shard, in order */
+	public long[] bounds(){
+		table.readLock().lock();
+		try{
+			return bounds.clone();
+		}finally{
+			table.readLock().unlock();
+		}
+	}
+
+	/** As for BTree.insert(), in the shard key goes in */
+	public boolean insert(long key, long addr) throws IOException {
+		return change(INSERT, key, addr) != 0;
+	}
+
+	/** As for BTree.remove(key) */
+	public long remove(long key) throws IOException {
+		return change(REMOVE_KEY, key, 0);
+	}
+
+	/** As for BTree.remove(key, addr) */
+	public long remove(long key, long addr) throws IOException {
+		return change(REMOVE_ROW, key, addr);
+	}
+
+	/** Do op in key's shard, keeping it for the new shards if that one's being split */
+	private long change(long op, long key, long addr) throws IOException {
+		table.readLock().lock();
+		try{
+			int i = shardFor(key);
+			if(i != splitting) return change(shards[i], op, key, addr);
+
+			// So changes are kept in the order they're made
+			synchronized(changes){
+				long result = change(shards[i], op, key, addr);
+				changes.add(new long[]{op, key, addr});
+				return result;
+			}
+		}finally{
+			table.readLock().unlock();
+		}
+	}
+
+	private static long change(BTree tree, long op, long key, long addr) throws IOException {
+		if(op == INSERT) return tree.insert(key, addr) ? 1 : 0;
+		if(op == REMOVE_ROW) return tree.remove(key, addr);
+		return tree.remove(key);
+	}
+
+	/** As for BTree.search() */
+	public long search(long key) throws IOException {
+		table.readLock().lock();
+		try{
+			return shards[shardFor(key)].search(key);
+		}finally{
+			table.readLock().unlock();
+		}
+	}
+
+	/**
+	 * As for BTree.searchBatch(). The keys are split up by shard and each
+	 * shard's are looked up on a thread of their own.
+	 */
+	public void searchBatch(long[] keys, long[] results) throws IOException {
+		table.readLock().lock();
+		try{
+			// Which keys go to each shard, by where they are in keys
+			int[] counts = new int[shards.length];
+			int[] shard = new int[keys.length];
+			for(int i = 0; i < keys.length; i++)
+				counts[shard[i] = shardFor(keys[i])]++;
+			int[][] at = new int[shards.length][];
+			for(int s = 0; s < shards.length; s++)
+				at[s] = new int[counts[s]];
+			Arrays.fill(counts, 0);
+			for(int i = 0; i < keys.length; i++)
+				at[shard[i]][counts[shard[i]]++] = i;
+
+			IntStream.range(0, shards.length).parallel().filter(s -> at[s].length > 0).forEach(s -> {
+				long[] some = new long[at[s].length];
+				long[] found = new long[some.length];
+				for(int j = 0; j < some.length; j++)
+					some[j] = keys[at[s][j]];
+				try{
+					shards[s].searchBatch(some, found);
+				}catch(IOException e){
+					throw new UncheckedIOException(e);
+				}
+				for(int j = 0; j < some.length; j++)
+					results[at[s][j]] = found[j];
+			});
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}finally{
+			table.readLock().unlock();
+		}
+	}
+
+	/** As for BTree.rangeSearch(), in key order across the shards */
+	public LinkedList<Long> rangeSearch(long low, long high) throws IOException {
+		LinkedList<Long> list = new LinkedList<>();
+		try{
+			rangeCursor(low, high).forEachRemaining((long addr) -> list.add(addr));
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+		return list;
+	}
+
+	/** As for BTree.rangeCursor() */
+	public RangeCursor rangeCursor(long low, long high) throws IOException {
+		return rangeCursor(low, high, false);
+	}
+
+	/** As for BTree.rangeCursor() */
+	public RangeCursor rangeCursor(long low, long high, boolean reverse) throws IOException {
+		return new RangeCursor(low, high, reverse);
+	}
+
+	/** As for BTree.searchAll() */
+	public LongStream searchAll(long key) throws IOException {
+		return rangeStream(key, key);
+	}
+
+	/** As for BTree.rangeStream() */
+	public LongStream rangeStream(long low, long high) throws IOException {
+		Spliterator.OfLong s = Spliterators.spliteratorUnknownSize(rangeCursor(low, high),
+				Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.longStream(s, false);
+	}
+
+	/**
+	 * Goes through the shards a range covers one after another, with a
+	 * BTree cursor on each. The shards hold separate key ranges, so that
+	 * keeps the keys in order. Throws ConcurrentModificationException if
+	 * it's used after a split, and UncheckedIOException on read errors.
+	 */
+	public class RangeCursor implements PrimitiveIterator.OfLong {
+		private long low, high;
+		private boolean reverse;
+		private int layout = splits;
+		private int shard; // The one cursor is on
+		private int last; // The last one to go through
+		private BTree.RangeCursor cursor;
+
+		private RangeCursor(long lo, long hi, boolean rev) throws IOException {
+			low = lo;
+			high = hi;
+			reverse = rev;
+			table.readLock().lock();
+			try{
+				int first = shardFor(rev ? hi : lo);
+				last = shardFor(rev ? lo : hi);
+				if(lo > hi) last = first;
+				shard = first;
+				cursor = open(first);
+			}finally{
+				table.readLock().unlock();
+			}
+		}
+
+		/** A cursor on shard i, for the part of the range it holds. Call holding the table lock. */
+		private BTree.RangeCursor open(int i) throws IOException {
+			if(layout != splits) throw new ConcurrentModificationException("Index was split");
+			return shards[i].rangeCursor(Math.max(low, bounds[i]), Math.min(high, upper(i)), reverse);
+		}
+
+		@Override
+		public boolean hasNext(){
+			if(layout != splits) throw new ConcurrentModificationException("Index was split");
+			while(!cursor.hasNext()){
+				if(shard == last) return false;
+				shard += reverse ? -1 : 1;
+				table.readLock().lock();
+				try{
+					cursor = open(shard);
+				}catch(IOException e){
+					throw new UncheckedIOException(e);
+				}finally{
+					table.readLock().unlock();
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public long nextLong(){
+			if(!hasNext()) throw new NoSuchElementException();
+			return cursor.nextLong();
+		}
+
+		/** The key that goes with the last address from nextLong() */
+		public long key(){
+			return cursor.key();
+		}
+	}
+
+	/**
+	 * Split the shard that holds at in two, with at the lowest key of the
+	 * second. Both halves are copied into new shard files from a snapshot
+	 * of the old shard, so it can go on being used the whole time; what
+	 * changes in it meanwhile is done again on the new shards before they
+	 * take its place. Only that swap holds up other calls.
+	 */
+	public synchronized void split(long at) throws IOException {
+		int i;
+		BTree old;
+		BTree.Snapshot snapshot;
+		table.writeLock().lock();
+		try{
+			i = shardFor(at);
+			if(bounds[i] == at) throw new IllegalArgumentException("A shard already starts at " + at);
+			old = shards[i];
+			snapshot = old.snapshot();
+			splitting = i;
+			changes = new ArrayList<>();
+		}finally{
+			table.writeLock().unlock();
+		}
+
+		int leftFile = nextFile++;
+		int rightFile = nextFile++;
+		BTree left = null, right = null;
+		try{
+			left = copy(snapshot, bounds[i], at - 1, old, shardName(leftFile));
+			right = copy(snapshot, at, upper(i), old, shardName(rightFile));
+		}catch(IOException | RuntimeException e){
+			table.writeLock().lock();
+			splitting = -1;
+			changes = null;
+			table.writeLock().unlock();
+			discard(left, leftFile);
+			discard(right, rightFile);
+			throw e;
+		}finally{
+			snapshot.close();
+		}
+
+		table.writeLock().lock();
+		try{
+			for(long[] c : changes)
+				change(c[1] < at ? left : right, c[0], c[1], c[2]);
+			splitting = -1;
+			changes = null;
+
+			// Make sure they're in their files before the list points to them
+			left.close();
+			right.close();
+			left = new BTree(shardName(leftFile));
+			right = new BTree(shardName(rightFile));
+
+			int oldFile = files[i];
+			long[] b = new long[bounds.length + 1];
+			int[] f = new int[b.length];
+			BTree[] t = new BTree[b.length];
+			for(int j = 0, k = 0; j < b.length; j++){
+				b[j] = j == i + 1 ? at : bounds[k];
+				f[j] = j == i ? leftFile : j == i + 1 ? rightFile : files[k];
+				t[j] = j == i ? left : j == i + 1 ? right : shards[k];
+				if(j != i) k++;
+			}
+			bounds = b;
+			files = f;
+			shards = t;
+			splits++;
+			writeShards();
+
+			old.close();
+			BTree.delete(shardName(oldFile));
+		}finally{
+			table.writeLock().unlock();
+		}
+	}
+
+	/** Close and delete a shard that didn't get used */
+	private void discard(BTree tree, int file) throws IOException {
+		if(tree != null) tree.close();
+		BTree.delete(shardName(file));
+	}
+
+	/** Copy the keys lo to hi from snapshot into a new tree set up like old */
+	private BTree copy(BTree.Snapshot snapshot, long lo, long hi, BTree old, String filename) throws IOException {
+		BTree tree = new BTree(filename, old.blockSize, old.keyBytes == 8 ? KeyCodec.LONG : KeyCodec.INT,
+				old.packed, old.duplicates);
+		BTree.BulkLoader loader = tree.bulkLoad(SPLIT_FILL);
+		ArrayList<long[]> more = new ArrayList<>(); // Rows of duplicate keys after the first
+		BTree.RangeCursor c = snapshot.rangeCursor(lo, hi);
+		try{
+			while(c.hasNext()){
+				long addr = c.nextLong();
+				if(!loader.add(c.key(), addr)) more.add(new long[]{c.key(), addr});
+			}
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+		loader.finish();
+		for(long[] row : more)
+			tree.insert(row[0], row[1]);
+		return tree;
+	}
+
+	/** Compact every shard, each on a thread of its own */
+	public void compact() throws IOException {
+		table.readLock().lock();
+		try{
+			Arrays.stream(shards).parallel().forEach(tree -> {
+				try{
+					tree.compact();
+				}catch(IOException e){
+					throw new UncheckedIOException(e);
+				}
+			});
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}finally{
+			table.readLock().unlock();
+		}
+	}
+
+	/** Close every shard. The index should not be used after. */
+	public void close() throws IOException {
+		table.writeLock().lock();
+		try{
+			for(BTree tree : shards)
+				tree.close();
+		}finally{
+			table.writeLock().unlock();
+		}
+	}
+}
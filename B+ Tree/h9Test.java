@@ -0,0 +1,747 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Checks that run without any input, for what h7Test and h8Test don't
+ * reach. Each one prints what it checked, and main exits with 1 if any
+ * failed. Tables and trees are made as h9* files and deleted after.
+ */
+public class h9Test {
+
+	int failed;
+
+	private void check(boolean ok, String what) {
+		System.out.println((ok ? "ok     " : "FAILED ") + what);
+		if (!ok)
+			failed++;
+	}
+
+	private void copy(String from, String to) throws IOException {
+		Files.copy(Paths.get(from), Paths.get(to), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void delete(String... names) {
+		for (String name : names)
+			new File(name).delete();
+	}
+
+	private char[][] makeFields(int fields[], int k) {
+		char f[][] = new char[fields.length][];
+		for (int i = 0; i < f.length; i++)
+			f[i] = Arrays.copyOf(Integer.toString(k).toCharArray(), fields[i]);
+		return f;
+	}
+
+	/** Keys from..to-1 are all in t, or all not */
+	private boolean has(BTree t, int from, int to, boolean in) throws IOException {
+		for (int k = from; k < to; k++)
+			if ((t.search(k) == 10L * k + 1) != in)
+				return false;
+		return true;
+	}
+
+	/** Open a copy of the tree and its log as they are now, like after a crash */
+	private BTree crashCopy(String name, int cutLog) throws IOException {
+		copy(name, "h9crash");
+		copy(name + ".log", "h9crash.log");
+		RandomAccessFile log = new RandomAccessFile("h9crash.log", "rw");
+		log.setLength(log.length() - cutLog);
+		log.close();
+		return new BTree("h9crash");
+	}
+
+	/**
+	 * With the write-ahead log on, a crash keeps every committed group of
+	 * operations and loses the rest, and one cut off part way through its
+	 * log record is left out whole.
+	 */
+	private void walCrash() throws IOException {
+		BTree t = new BTree("h9wal", 132);
+		for (int k = 0; k < 1000; k++)
+			t.insert(k, 10L * k + 1);
+		t.close();
+
+		t = new BTree("h9wal");
+		t.startLog(10);
+		for (int k = 1000; k < 1505; k++)
+			t.insert(k, 10L * k + 1);
+		for (int k = 0; k < 100; k++)
+			t.remove(k);
+
+		// 605 operations make 60 commits, so removes of 95-99 are only in memory
+		BTree c = crashCopy("h9wal", 0);
+		check(has(c, 0, 95, false) && has(c, 95, 1505, true),
+				"a crash keeps the committed groups and loses the rest");
+		c.insert(-1, -9);
+		c.close();
+		c = new BTree("h9crash");
+		check(c.search(-1) == -9 && has(c, 95, 1505, true) && !new File("h9crash.log").exists(),
+				"the recovered tree takes inserts and reopens without the log");
+		c.close();
+
+		c = crashCopy("h9wal", 10);
+		check(has(c, 0, 85, false) && has(c, 85, 1505, true),
+				"a commit cut off in the log is left out whole");
+		c.close();
+
+		t.close();
+		t = new BTree("h9wal");
+		check(has(t, 0, 100, false) && has(t, 100, 1505, true), "a clean close keeps everything");
+		t.close();
+		BTree.delete("h9wal");
+		BTree.delete("h9crash");
+	}
+
+	/**
+	 * The tables checked in with the repo open, read back the same rows as
+	 * before, and keep them through an insert and a reopen. f1's free list
+	 * points at a row that's in use, so opening it cuts the list there and
+	 * an insert mustn't go there.
+	 */
+	private void reopenCheckedIn() throws IOException {
+		String names[] = {"f1", "f2", "f3", "test1"};
+		int rows[] = {8, 41, 54, 0};
+		int fields[][] = {{15, 30}, {5, 10, 30}, {35}, {10, 20}};
+		for (int i = 0; i < names.length; i++) {
+			String name = "h9" + names[i];
+			copy(names[i], name);
+			copy(names[i] + "BTreeFile", name + "BTreeFile");
+
+			DBTable t = new DBTable(name);
+			LinkedList<LinkedList<String>> before = t.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE);
+			check(before.size() == rows[i] && (t.freeListCut != null) == names[i].equals("f1"),
+					names[i] + " opens with " + rows[i] + " rows" + (i == 0 ? ", cutting its free list short" : ""));
+			t.insert(1000, makeFields(fields[i], 1000));
+			t.close();
+
+			t = new DBTable(name);
+			LinkedList<LinkedList<String>> after = t.rangeSearch(Integer.MIN_VALUE, 999);
+			check(after.equals(before) && t.search(1000).getFirst().equals("1000"),
+					names[i] + " keeps its rows through an insert and a reopen");
+			t.close();
+			BTree.delete(name + "BTreeFile");
+			delete(name);
+		}
+	}
+
+	/**
+	 * compact() gives back the space removes left, in a tree and in a
+	 * table, and keeps everything that wasn't removed through a reopen.
+	 */
+	private void compaction() throws IOException {
+		BTree t = new BTree("h9compact", 132);
+		for (int k = 0; k < 5000; k++)
+			t.insert(k, 10L * k + 1);
+		for (int k = 0; k < 5000; k++)
+			if (k % 4 != 0)
+				t.remove(k);
+		// Nodes live in the cache until close, so count them instead of bytes
+		long before = Arrays.stream(t.stats().nodes).sum();
+		t.compact();
+		boolean kept = true;
+		for (int k = 0; k < 5000; k++)
+			kept &= t.search(k) == (k % 4 == 0 ? 10L * k + 1 : 0);
+		check(kept && Arrays.stream(t.stats().nodes).sum() < before / 2, "BTree compact() frees the emptied nodes and keeps the keys");
+		t.close();
+		t = new BTree("h9compact");
+		check(t.rangeSearch(0, 5000).size() == 1250 && t.search(4996) == 49961, "a compacted tree reopens");
+		t.close();
+
+		int fields[] = {10, 20};
+		DBTable d = new DBTable("h9table", fields, 132);
+		for (int k = 0; k < 2000; k++)
+			d.insert(k, makeFields(fields, k));
+		for (int k = 0; k < 2000; k++)
+			if (k % 3 != 0)
+				d.remove(k);
+		LinkedList<LinkedList<String>> rows = d.rangeSearch(0, 2000);
+		long length = new File("h9table").length();
+		d.compact();
+		check(d.rangeSearch(0, 2000).equals(rows) && new File("h9table").length() < length / 2,
+				"DBTable compact() shrinks the file and keeps the rows");
+		d.insert(1, makeFields(fields, 1));
+		d.close();
+		d = new DBTable("h9table");
+		check(d.rangeSearch(2, 2000).equals(rows.subList(1, rows.size())) && d.search(1).getFirst().equals("1"),
+				"a compacted table reopens and takes inserts");
+		d.close();
+		BTree.delete("h9compact");
+		BTree.delete("h9tableBTreeFile");
+		delete("h9table");
+	}
+
+	/**
+	 * A snapshot keeps seeing the tree as it was while inserts and removes
+	 * go on, including from another thread, and can't be read after
+	 * compact().
+	 */
+	private void snapshots() throws IOException, InterruptedException {
+		BTree t = new BTree("h9snap", 132);
+		for (int k = 0; k < 3000; k += 2)
+			t.insert(k, 10L * k + 1);
+		BTree.Snapshot snap = t.snapshot();
+		LinkedList<Long> all = t.rangeSearch(0, 3000);
+
+		Thread writer = new Thread(() -> {
+			try {
+				for (int k = 1; k < 3000; k += 2)
+					t.insert(k, 10L * k + 1);
+				for (int k = 0; k < 3000; k += 4)
+					t.remove(k);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		writer.start();
+		boolean same = true;
+		while (writer.isAlive())
+			same &= snap.rangeSearch(0, 3000).equals(all);
+		writer.join();
+		check(same && snap.rangeSearch(0, 3000).equals(all) && snap.search(0) == 1 && snap.search(1) == 0,
+				"a snapshot doesn't see inserts and removes made after it");
+		check(t.search(0) == 0 && t.search(1) == 11 && t.rangeSearch(0, 3000).size() == 2250,
+				"the tree does");
+		snap.close();
+
+		snap = t.snapshot();
+		t.compact();
+		boolean ended = false;
+		try {
+			snap.search(2);
+		} catch (ConcurrentModificationException e) {
+			ended = true;
+		}
+		check(ended, "compact() ends the snapshots open on it");
+		t.close();
+		BTree.delete("h9snap");
+	}
+
+	/**
+	 * Splitting a shard while another thread inserts and removes keys in it
+	 * loses none of them, stops cursors opened before, and is kept on
+	 * reopen.
+	 */
+	private void shardSplit() throws IOException, InterruptedException {
+		ShardedBTree t = new ShardedBTree("h9shards", 132, 1000);
+		for (int k = 0; k < 4000; k += 2)
+			t.insert(k, 10L * k + 1);
+		ShardedBTree.RangeCursor before = t.rangeCursor(0, 4000);
+
+		Thread writer = new Thread(() -> {
+			try {
+				for (int k = 1; k < 4000; k += 2)
+					t.insert(k, 10L * k + 1);
+				for (int k = 0; k < 4000; k += 4)
+					t.remove(k);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		writer.start();
+		t.split(2500);
+		writer.join();
+
+		boolean kept = true;
+		for (int k = 0; k < 4000; k++)
+			kept &= t.search(k) == (k % 4 == 0 ? 0 : 10L * k + 1);
+		check(kept && Arrays.equals(t.bounds(), new long[] {Long.MIN_VALUE, 1000, 2500}),
+				"a split keeps the changes made while it ran");
+		boolean stopped = false;
+		try {
+			before.hasNext();
+		} catch (ConcurrentModificationException e) {
+			stopped = true;
+		}
+		check(stopped, "cursors from before a split stop");
+		t.close();
+
+		ShardedBTree reopened = new ShardedBTree("h9shards");
+		check(reopened.shardCount() == 3 && reopened.rangeSearch(0, 4000).size() == 3000, "a split index reopens");
+		reopened.close();
+		for (String name : new File(".").list())
+			if (name.startsWith("h9shards"))
+				BTree.delete(name);
+	}
+
+	/**
+	 * Leaves removes leave underfull are still noted after a reopen, and
+	 * with setRebalanceAfter() removes merge them on their own.
+	 */
+	private void rebalancing() throws IOException {
+		BTree t = new BTree("h9rebal", 132);
+		for (int k = 0; k < 5000; k++)
+			t.insert(k, 10L * k + 1);
+		for (int k = 0; k < 5000; k++)
+			if (k % 10 != 0)
+				t.remove(k);
+		long leaves = t.stats().nodes[t.stats().height - 1];
+		t.close();
+
+		t = new BTree("h9rebal");
+		int freed = t.rebalance();
+		BTree.Stats s = t.stats();
+		check(freed > 0 && s.nodes[s.height - 1] < leaves / 3 && t.rangeSearch(0, 5000).size() == 500,
+				"underfull leaves noted before a close get merged after it");
+		t.close();
+
+		t = new BTree("h9rebal", 132);
+		t.setRebalanceAfter(16);
+		for (int k = 0; k < 5000; k++)
+			t.insert(k, 10L * k + 1);
+		for (int k = 0; k < 5000; k++)
+			if (k % 10 != 0)
+				t.remove(k);
+		s = t.stats();
+		check(t.underfull.size() < 16 && s.nodes[s.height - 1] < leaves / 3 && t.rangeSearch(0, 5000).size() == 500,
+				"removes rebalance on their own after setRebalanceAfter()");
+		t.close();
+		BTree.delete("h9rebal");
+	}
+
+	/**
+	 * Trees from before the header page still open and keep their format,
+	 * new ones get the header, and a damaged header is caught on open.
+	 */
+	private void headers() throws IOException {
+		copy("f2BTreeFile", "h9old");
+		BTree t = new BTree("h9old");
+		boolean read = t.format == 1 && t.rangeSearch(Long.MIN_VALUE, 999).size() == 41;
+		t.insert(1000, 1);
+		t.close();
+		t = new BTree("h9old");
+		check(read && t.format == 1 && t.search(1000) == 1 && t.rangeSearch(Long.MIN_VALUE, 999).size() == 41,
+				"an old tree opens, takes an insert and stays in the old format");
+		t.close();
+
+		t = new BTree("h9new", 132);
+		t.insert(5, 50);
+		t.close();
+		t = new BTree("h9new");
+		check(t.format == BTree.FORMAT && t.search(5) == 50, "a new tree gets the current format");
+		t.close();
+
+		RandomAccessFile f = new RandomAccessFile("h9new", "rw");
+		f.seek(0);
+		f.writeLong(123);
+		f.close();
+		boolean caught = false;
+		try {
+			new BTree("h9new").close();
+		} catch (IOException e) {
+			caught = true;
+		}
+		check(caught, "a damaged header is caught on open");
+		BTree.delete("h9old");
+		BTree.delete("h9new");
+	}
+
+	/** Fields as a row of the table gives them back: cut to length, without nulls */
+	private LinkedList<String> expect(int fields[], String... values) {
+		LinkedList<String> row = new LinkedList<>();
+		for (int i = 0; i < fields.length; i++)
+			row.add(values[i].substring(0, Math.min(values[i].length(), fields[i])));
+		return row;
+	}
+
+	private char[][] chars(int fields[], String... values) {
+		char f[][] = new char[fields.length][];
+		for (int i = 0; i < f.length; i++)
+			f[i] = Arrays.copyOf(values[i].toCharArray(), fields[i]);
+		return f;
+	}
+
+	/**
+	 * Compact rows give back what was put in, whatever characters it has,
+	 * take less room than rows of chars, and reuse the room removes leave.
+	 * Tables with fields too long for them still store chars.
+	 */
+	private void compactRows() throws IOException {
+		int fields[] = {10, 20};
+		String values[][] = {{"abc", "def"}, {"", ""}, {"\u00dcber", "caf\u00e9"},
+				{"\u6f22\u5b57", "mixed \u00e9 \u6f22"}, {"0123456789", "a field longer than twenty"}};
+		DBTable t = new DBTable("h9rows", fields, 132);
+		for (int k = 0; k < 1000; k++)
+			t.insert(k, chars(fields, values[k % values.length]));
+		boolean same = t.compactRows;
+		for (int k = 0; k < 1000; k++)
+			same &= t.search(k).equals(expect(fields, values[k % values.length]));
+		t.close();
+		check(same && new File("h9rows").length() < 1000L * t.rowSize / 2,
+				"compact rows give back every kind of field and take less than half the room");
+
+		t = new DBTable("h9rows");
+		for (int k = 0; k < 1000; k += 2)
+			t.remove(k);
+		long length = new File("h9rows").length();
+		for (int k = 0; k < 1000; k += 2)
+			t.insert(k, chars(fields, values[k % values.length]));
+		same = t.compactRows && new File("h9rows").length() == length;
+		for (int k = 0; k < 1000; k++)
+			same &= t.search(k).equals(expect(fields, values[k % values.length]));
+		check(same, "a reopened table reuses the rows removes leave");
+		t.close();
+
+		t = new DBTable("h9wide", new int[] {20000}, 132);
+		t.insert(1, chars(new int[] {20000}, "\u6f22 wide"));
+		check(!t.compactRows && t.search(1).getFirst().equals("\u6f22 wide"), "fields too long for compact rows are stored as chars");
+		t.close();
+		BTree.delete("h9rowsBTreeFile");
+		BTree.delete("h9wideBTreeFile");
+		delete("h9rows", "h9wide");
+	}
+
+	/**
+	 * The row cache answers repeat searches, forgets removed rows, and
+	 * stays within its budget by dropping the least recently used.
+	 */
+	private void rowCache() throws IOException {
+		int fields[] = {10, 20};
+		DBTable t = new DBTable("h9cache", fields, 132);
+		for (int k = 0; k < 1000; k++)
+			t.insert(k, makeFields(fields, k));
+		t.setRowCache(20000);
+
+		boolean same = true;
+		for (int round = 0; round < 2; round++)
+			for (int k = 0; k < 50; k++)
+				same &= t.search(k).equals(expect(fields, "" + k, "" + k));
+		check(same && t.cacheHits() == 50 && t.cacheMisses() == 50, "repeat searches come from the cache");
+
+		t.remove(7);
+		t.insert(7, makeFields(fields, 70));
+		t.remove(8);
+		check(t.search(7).equals(expect(fields, "70", "70")) && t.search(8).isEmpty(),
+				"removed rows aren't searched from the cache");
+
+		for (int k = 0; k < 1000; k++)
+			t.search(k);
+		check(t.rowCacheBytes <= 20000 && t.rowCache.size() < 1000 && t.search(999).size() == 2 && t.search(0).size() == 2
+				&& t.cacheHits() > 50, "the cache keeps to its budget");
+		t.close();
+		BTree.delete("h9cacheBTreeFile");
+		delete("h9cache");
+	}
+
+	/** Share of rows, in key order, that sit a little way after the one before */
+	private double inOrder(DBTable t) throws IOException {
+		long prev = -1;
+		int near = 0, rows = 0;
+		for (long addr : t.tree.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+			if (prev >= 0 && addr > prev && addr - prev < 4096)
+				near++;
+			prev = addr;
+			rows++;
+		}
+		return near / (double) rows;
+	}
+
+	/**
+	 * A clustered table stays clustered through a reopen, compact() lays
+	 * it out in key order, and inserts after that go in the gaps it left
+	 * next to their neighbors, so range searches read the file in order.
+	 */
+	private void clustering() throws IOException {
+		int fields[] = {10, 20};
+		DBTable t = new DBTable("h9cluster", fields, 132);
+		t.setClustered(true);
+		Random r = new Random(9);
+		TreeMap<Integer, LinkedList<String>> rows = new TreeMap<>();
+		for (int i = 0; i < 3000; i++) {
+			int k = 2 * r.nextInt(10000);
+			if (t.insert(k, makeFields(fields, k)))
+				rows.put(k, expect(fields, "" + k, "" + k));
+		}
+		t.close();
+
+		t = new DBTable("h9cluster");
+		t.compact();
+		check(t.clustered && inOrder(t) > 0.99, "compact() lays a clustered table out in key order");
+		int near = 0;
+		for (int i = 0; i < 300; i++) {
+			int k = 2 * r.nextInt(10000) + 1;
+			if (t.insert(k, makeFields(fields, k))) {
+				rows.put(k, expect(fields, "" + k, "" + k));
+				Integer before = rows.lowerKey(k);
+				if (before != null && Math.abs(t.tree.search(k) - t.tree.search(before)) < 4096)
+					near++;
+			}
+		}
+		check(near > 200, "inserts go near the row before them");
+
+		LinkedList<LinkedList<String>> want = new LinkedList<>();
+		for (Map.Entry<Integer, LinkedList<String>> e : rows.entrySet()) {
+			LinkedList<String> row = new LinkedList<>(e.getValue());
+			row.addFirst("" + e.getKey());
+			want.add(row);
+		}
+		check(t.rangeSearch(0, 20000).equals(want), "range searches read them back in key order");
+		t.close();
+		BTree.delete("h9clusterBTreeFile");
+		delete("h9cluster");
+	}
+
+	private boolean refuses(Runnable make) {
+		try {
+			make.run();
+			return false;
+		} catch (IllegalArgumentException e) {
+			return true;
+		}
+	}
+
+	/** Keys a tree hands back in order, decoded */
+	private <K> List<K> treeOrder(BTree t, KeyCodec<K> codec) throws IOException {
+		List<K> keys = new ArrayList<>();
+		BTree.RangeCursor c = t.rangeCursor(Long.MIN_VALUE, Long.MAX_VALUE);
+		while (c.hasNext()) {
+			c.nextLong();
+			keys.add(codec.decode(c.key()));
+		}
+		return keys;
+	}
+
+	/**
+	 * Codecs keep keys in order, negative ones included, so a tree of
+	 * encoded keys hands them back sorted, and they refuse keys that don't
+	 * fit in 8 bytes when they're made.
+	 */
+	private void keyCodecs() throws IOException {
+		Random r = new Random(11);
+		BTree t = new BTree("h9codec", 132, KeyCodec.LONG, false);
+		TreeSet<Long> longs = new TreeSet<>();
+		for (int i = 0; i < 2000; i++) {
+			long k = r.nextLong() >> r.nextInt(64);
+			if (longs.add(k))
+				t.insert(KeyCodec.LONG.encode(k), 1);
+		}
+		check(treeOrder(t, KeyCodec.LONG).equals(new ArrayList<>(longs)), "negative and positive longs come back in order");
+		t.close();
+		BTree.delete("h9codec");
+
+		t = new BTree("h9codec", 132, KeyCodec.INT, false);
+		TreeSet<Integer> ints = new TreeSet<>();
+		for (int i = 0; i < 2000; i++) {
+			int k = r.nextInt() >> r.nextInt(32);
+			if (ints.add(k))
+				t.insert(KeyCodec.INT.encode(k), 1);
+		}
+		check(treeOrder(t, KeyCodec.INT).equals(new ArrayList<>(ints)), "negative and positive ints come back in order");
+		t.close();
+		BTree.delete("h9codec");
+
+		// Fields of 2, 1 and 4 bytes, ordered by the first, then the second, then the third
+		KeyCodec<long[]> codec = KeyCodec.composite(2, 1, 4);
+		Comparator<long[]> byFields = (a, b) -> {
+			for (int i = 0; i < a.length; i++)
+				if (a[i] != b[i])
+					return Long.compare(a[i], b[i]);
+			return 0;
+		};
+		t = new BTree("h9codec", 132, codec, false);
+		TreeSet<long[]> composite = new TreeSet<>(byFields);
+		for (int i = 0; i < 2000; i++) {
+			long k[] = {r.nextInt(65536) - 32768, r.nextInt(8) - 4, r.nextInt()};
+			if (composite.add(k))
+				t.insert(codec.encode(k), 1);
+		}
+		List<long[]> got = treeOrder(t, codec);
+		boolean same = got.size() == composite.size();
+		Iterator<long[]> want = composite.iterator();
+		for (int i = 0; same && i < got.size(); i++)
+			same = Arrays.equals(got.get(i), want.next());
+		check(same, "composite keys come back ordered field by field");
+		t.close();
+		BTree.delete("h9codec");
+
+		check(refuses(() -> KeyCodec.bytes(9)) && refuses(() -> KeyCodec.composite(4, 4, 1)),
+				"codecs for keys over 8 bytes can't be made");
+	}
+
+	/**
+	 * searchBatch() finds what search() does for every key, in the order
+	 * asked, whether the keys repeat, are missing, or have several rows.
+	 */
+	private void batchSearch() throws IOException {
+		Random r = new Random(13);
+		BTree t = new BTree("h9batch", 132, KeyCodec.INT, false, true);
+		for (int k = 0; k < 20000; k += 2)
+			t.insert(k, 10L * k + 1);
+		for (int k = 0; k < 20000; k += 10)
+			t.insert(k, 10L * k + 2); // A second row for some keys
+		t.remove(500);
+		t.remove(500, 5002);
+
+		long keys[] = new long[5000];
+		for (int i = 0; i < keys.length; i++)
+			keys[i] = i % 7 == 0 ? keys[i / 2] : r.nextInt(20200) - 100;
+		keys[1] = 500;
+		keys[2] = 500;
+		long results[] = new long[keys.length];
+		t.searchBatch(keys, results);
+		boolean same = true;
+		int missing = 0;
+		for (int i = 0; i < keys.length; i++) {
+			same &= results[i] == t.search(keys[i]);
+			if (results[i] == 0)
+				missing++;
+		}
+		check(same && missing > 1000 && missing < keys.length - 1000,
+				"searchBatch() matches search() for repeated, missing and duplicate keys");
+
+		int small[] = {19998, -1, 4, 4, 19999, 0};
+		results = new long[small.length];
+		t.searchBatch(small, results);
+		check(Arrays.equals(results, new long[] {199981, 0, 41, 41, 0, t.search(0)}),
+				"searchBatch() of ints hands results back in the order asked");
+		t.close();
+		BTree.delete("h9batch");
+	}
+
+	/**
+	 * Blocks freed before they were ever written are past the end of the
+	 * file, but still in the free map. Closing keeps them in the file, so
+	 * reopening doesn't hand them out a second time.
+	 */
+	private void freedPastEnd() throws IOException {
+		BTree t = new BTree("h9end", 132);
+		for (int k = 0; k < 300; k++)
+			t.insert(k, 10L * k + 1);
+		for (int k = 0; k < 50; k++)
+			t.remove(k);
+		t.rebalance();
+		for (int k = 1000; k < 1100; k++)
+			t.insert(k, 10L * k + 1);
+		for (int k = 1000; k < 1100; k++)
+			t.remove(k);
+		t.rebalance();
+		t.close();
+
+		t = new BTree("h9end");
+		for (int k = 2000; k < 2400; k++)
+			t.insert(k, 10L * k + 1);
+		check(has(t, 0, 50, false) && has(t, 50, 300, true) && has(t, 1000, 1100, false) && has(t, 2000, 2400, true)
+				&& t.rangeSearch(Integer.MIN_VALUE, Integer.MAX_VALUE).size() == 650,
+				"blocks freed before they were written aren't handed out twice after a reopen");
+		t.compact();
+		check(has(t, 50, 300, true) && has(t, 2000, 2400, true), "and the tree compacts after");
+		t.close();
+		BTree.delete("h9end");
+	}
+
+	/** Keys and addresses a cursor hands out, one after the other */
+	private List<Long> scan(BTree t, long low, long high) throws IOException {
+		List<Long> out = new ArrayList<>();
+		BTree.RangeCursor c = t.rangeCursor(low, high);
+		while (c.hasNext()) {
+			long addr = c.nextLong();
+			out.add(c.key());
+			out.add(addr);
+		}
+		return out;
+	}
+
+	/**
+	 * A cursor reading leaves ahead hands out the same rows, in the same
+	 * order, as one that doesn't, from leaves read ahead or not.
+	 */
+	private void readahead() throws IOException {
+		Random r = new Random(15);
+		BTree t = new BTree("h9ahead", 132, KeyCodec.INT, false, true);
+		for (int i = 0; i < 20000; i++) {
+			int k = r.nextInt(50000);
+			t.insert(k, 10L * k + 1 + i % 3); // Some keys get a second or third row
+		}
+		t.close();
+
+		long ranges[][] = {{Integer.MIN_VALUE, Integer.MAX_VALUE}, {100, 40000}, {25000, 25100}, {60000, 70000}};
+		t = new BTree("h9ahead");
+		List<List<Long>> plain = new ArrayList<>();
+		for (long range[] : ranges)
+			plain.add(scan(t, range[0], range[1]));
+		t.close();
+
+		t = new BTree("h9ahead"); // Nothing cached, so leaves really are read ahead
+		t.setCacheSize(64 * 132);
+		t.setReadahead(8);
+		boolean same = plain.get(0).size() > 30000;
+		for (int i = 0; i < ranges.length; i++)
+			same &= scan(t, ranges[i][0], ranges[i][1]).equals(plain.get(i));
+		check(same, "cursors reading ahead hand out the same rows as plain ones");
+		t.close();
+		BTree.delete("h9ahead");
+	}
+
+	/**
+	 * Rows read through a RowCursor are what rangeSearch() gives back, from
+	 * field() and from fieldBytes() in fieldCharset(), for Latin-1 and UTF-8
+	 * fields of compact rows and for rows of chars.
+	 */
+	private void rowViews() throws IOException {
+		String values[][] = {{"plain", "ascii"}, {"\u00dcber", "caf\u00e9"}, {"\u6f22\u5b57", "mixed \u00e9 \u6f22"},
+				{"", "\u00ff\u00e0"}, {"0123456789", "\ud83d\ude00 pair"}};
+		int sizes[][] = {{10, 20}, {10, 20000}};
+		for (int fields[] : sizes) {
+			DBTable t = new DBTable("h9view", fields, 132);
+			for (int k = 0; k < 600; k++)
+				t.insert(k, chars(fields, values[k % values.length]));
+			t.close();
+
+			t = new DBTable("h9view");
+			LinkedList<LinkedList<String>> want = t.rangeSearch(50, 549);
+			LinkedList<LinkedList<String>> fromChars = new LinkedList<>();
+			LinkedList<LinkedList<String>> fromBytes = new LinkedList<>();
+			boolean charsets = true;
+			DBTable.RowCursor c = t.rangeCursor(50, 549);
+			while (c.hasNext()) {
+				DBTable.RowView v = c.next();
+				LinkedList<String> a = new LinkedList<>(), b = new LinkedList<>();
+				a.add("" + v.key());
+				b.add("" + v.key());
+				for (int i = 0; i < v.fieldCount(); i++) {
+					a.add(v.field(i).toString());
+					ByteBuffer bytes = v.fieldBytes(i);
+					b.add(v.fieldCharset(i).decode(bytes).toString());
+					boolean latin1 = a.getLast().chars().allMatch(ch -> ch < 256);
+					charsets &= v.fieldCharset(i).equals(!t.compactRows ? StandardCharsets.UTF_16BE
+							: latin1 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+				}
+				fromChars.add(a);
+				fromBytes.add(b);
+			}
+			String rows = t.compactRows ? "compact rows" : "rows of chars";
+			check(want.size() == 500 && fromChars.equals(want) && fromBytes.equals(want) && charsets,
+					"field() and fieldBytes() of " + rows + " match rangeSearch()");
+			t.close();
+			BTree.delete("h9viewBTreeFile");
+			delete("h9view");
+		}
+	}
+
+	public h9Test() throws IOException, InterruptedException {
+		walCrash();
+		reopenCheckedIn();
+		compaction();
+		freedPastEnd();
+		snapshots();
+		shardSplit();
+		rebalancing();
+		headers();
+		compactRows();
+		rowCache();
+		clustering();
+		keyCodecs();
+		batchSearch();
+		readahead();
+		rowViews();
+	}
+
+	public static void main(String args[]) throws IOException, InterruptedException {
+		h9Test t = new h9Test();
+		System.out.println(t.failed == 0 ? "All checks passed" : t.failed + " checks failed");
+		if (t.failed != 0)
+			System.exit(1);
+	}
+}